@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mortardata.recsys.FilterItemItemLinks;
+import com.mortardata.recsys.FilterItemItemLinksDetailed;
+
+/**
+ * FilterItemItemLinks and FilterItemItemLinksDetailed on the unsummed links of a single
+ * item_A, going through accumulate, getValue and cleanup as Pig does in accumulative mode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterItemItemLinksBenchmark {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+    private static final int NUM_ITEMS = 64;
+
+    @Param({ "1000", "100000" })
+    public int catalogSize;
+
+    @Param({ "100", "10000" })
+    public int linksPerItem;
+
+    @Param({ "0.5", "1.0" })
+    public double skew;
+
+    private Tuple[] items;
+    private Tuple[] itemsDetailed;
+    private int next;
+
+    private FilterItemItemLinks filter;
+    private FilterItemItemLinksDetailed filterDetailed;
+
+    @Setup
+    public void setUp() {
+        SyntheticData data = new SyntheticData(42L, catalogSize, skew);
+        items = new Tuple[NUM_ITEMS];
+        itemsDetailed = new Tuple[NUM_ITEMS];
+        for (int i = 0; i < NUM_ITEMS; i++) {
+            String itemA = data.sampleItem();
+            items[i] = tf.newTuple(data.itemItemLinks(itemA, linksPerItem));
+            itemsDetailed[i] = tf.newTuple(data.itemItemLinksDetailed(itemA, linksPerItem));
+        }
+
+        filter = new FilterItemItemLinks("0.0");
+        filterDetailed = new FilterItemItemLinksDetailed("0.0");
+    }
+
+    @Benchmark
+    public void filter(Blackhole bh) throws IOException {
+        filter.accumulate(items[nextItem()]);
+        GraphBuilderBenchmark.consume(filter.getValue(), bh);
+        filter.cleanup();
+    }
+
+    @Benchmark
+    public void filterDetailed(Blackhole bh) {
+        filterDetailed.accumulate(itemsDetailed[nextItem()]);
+        GraphBuilderBenchmark.consume(filterDetailed.getValue(), bh);
+        filterDetailed.cleanup();
+    }
+
+    private int nextItem() {
+        next = (next + 1) % NUM_ITEMS;
+        return next;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mortardata.recsys.UserItemToItemItemGraphBuilder;
+import com.mortardata.recsys.UserItemToItemItemGraphBuilderDetailed;
+
+/**
+ * UserItemToItemItemGraphBuilder and UserItemToItemItemGraphBuilderDetailed on the top links
+ * of a single user.  Every output link is consumed, since the plain builder generates its
+ * links lazily.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphBuilderBenchmark {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+    private static final int NUM_USERS = 64;
+
+    @Param({ "1000", "100000" })
+    public int catalogSize;
+
+    @Param({ "10", "100" })
+    public int itemsPerUser;
+
+    @Param({ "0.5", "1.0" })
+    public double skew;
+
+    private Tuple[] users;
+    private Tuple[] usersDetailed;
+    private int next;
+
+    private UserItemToItemItemGraphBuilder builder;
+    private UserItemToItemItemGraphBuilderDetailed builderDetailed;
+
+    @Setup
+    public void setUp() {
+        SyntheticData data = new SyntheticData(42L, catalogSize, skew);
+        users = new Tuple[NUM_USERS];
+        usersDetailed = new Tuple[NUM_USERS];
+        for (int u = 0; u < NUM_USERS; u++) {
+            // The UDFs get at most max_links_per_user items, which defaults to 100.
+            users[u] = tf.newTuple(data.userItemLinks("user_" + u, itemsPerUser));
+            usersDetailed[u] = tf.newTuple(data.userItemLinksDetailed("user_" + u, itemsPerUser));
+        }
+
+        builder = new UserItemToItemItemGraphBuilder();
+        builderDetailed = new UserItemToItemItemGraphBuilderDetailed();
+    }
+
+    @Benchmark
+    public void builder(Blackhole bh) throws IOException {
+        consume(builder.exec(users[nextUser()]), bh);
+    }
+
+    @Benchmark
+    public void builderDetailed(Blackhole bh) throws IOException {
+        consume(builderDetailed.exec(usersDetailed[nextUser()]), bh);
+    }
+
+    private int nextUser() {
+        next = (next + 1) % NUM_USERS;
+        return next;
+    }
+
+    static void consume(DataBag bag, Blackhole bh) {
+        for (Tuple t : bag) {
+            bh.consume(t);
+        }
+    }
+}
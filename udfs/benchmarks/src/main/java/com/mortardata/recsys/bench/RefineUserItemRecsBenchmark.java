@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mortardata.recsys.RefineUserItemRecs;
+
+/**
+ * RefineUserItemRecs on the signals and candidate recommendations of a single user.
+ *
+ * RefineUserItemRecs appends fields to the candidate tuples it returns, so each invocation
+ * gets fresh copies of the candidates.  Copying happens in an invocation level setup, which
+ * is not measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RefineUserItemRecsBenchmark {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+    private static final int NUM_USERS = 64;
+
+    @Param({ "1000", "100000" })
+    public int catalogSize;
+
+    @Param({ "10", "100" })
+    public int itemsPerUser;
+
+    @Param({ "100", "5000" })
+    public int candidatesPerUser;
+
+    @Param({ "false", "true" })
+    public String diversityAdjust;
+
+    @Param({ "0.5" })
+    public double skew;
+
+    private DataBag[] signals;
+    private DataBag[] candidates;
+    private int next;
+    private Tuple input;
+
+    private RefineUserItemRecs refine;
+
+    @Setup
+    public void setUp() {
+        SyntheticData data = new SyntheticData(42L, catalogSize, skew);
+        signals = new DataBag[NUM_USERS];
+        candidates = new DataBag[NUM_USERS];
+        for (int u = 0; u < NUM_USERS; u++) {
+            signals[u] = data.userItemLinks("user_" + u, itemsPerUser);
+            candidates[u] = data.userRecCandidates(signals[u], candidatesPerUser);
+        }
+
+        refine = new RefineUserItemRecs("10", diversityAdjust);
+    }
+
+    @Setup(Level.Invocation)
+    public void nextUser() {
+        next = (next + 1) % NUM_USERS;
+        input = tf.newTuple(2);
+        try {
+            input.set(0, signals[next]);
+            input.set(1, SyntheticData.copyTuples(candidates[next]));
+        } catch (ExecException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Benchmark
+    public void refine(Blackhole bh) {
+        GraphBuilderBenchmark.consume(refine.exec(input), bh);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+public class SyntheticData {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+    private static final BagFactory bf = BagFactory.getInstance();
+
+    private static final String[] SIGNAL_TYPES = { "purchase", "wishlist", "view" };
+
+    private final Random random;
+    private final String[] items;
+    private final double[] itemCdf;
+
+    /**
+     * Generates Pig inputs for the recsys UDFs, shaped like data/retail: a few items are linked
+     * to far more users than the rest, and a few users link to far more items than the rest.
+     *
+     * Item popularity follows a Zipf distribution over the catalog, where the item with
+     * popularity rank r is picked with probability proportional to 1 / r^skew.  The number of
+     * items per user follows a Pareto distribution with the requested mean.
+     *
+     * The same seed always generates the same data.
+     *
+     * @param seed: Random seed.
+     * @param catalogSize: Number of distinct items.
+     * @param skew: Zipf exponent of the item popularity.  0 is uniform; data/retail is close to 0.5.
+     */
+    public SyntheticData(long seed, int catalogSize, double skew) {
+        this.random = new Random(seed);
+        this.items = new String[catalogSize];
+        this.itemCdf = new double[catalogSize];
+
+        double total = 0.0;
+        for (int r = 0; r < catalogSize; r++) {
+            items[r] = "item_" + r;
+            total += 1.0 / Math.pow(r + 1, skew);
+            itemCdf[r] = total;
+        }
+        for (int r = 0; r < catalogSize; r++) {
+            itemCdf[r] /= total;
+        }
+    }
+
+    public String sampleItem() {
+        int r = Arrays.binarySearch(itemCdf, random.nextDouble());
+        return items[Math.min(r < 0 ? -r - 1 : r, items.length - 1)];
+    }
+
+    /**
+     * A Pareto distributed count with the given mean, at least 1 and at most max.
+     */
+    public int sampleCount(int mean, int max) {
+        // Pareto with shape 2 has mean 2 * scale.
+        double scale = mean / 2.0;
+        double count = scale / Math.sqrt(1.0 - random.nextDouble());
+        return (int) Math.max(1, Math.min(max, Math.round(count)));
+    }
+
+    /**
+     * @return { (user: chararray, item: chararray, weight: float) } with distinct items,
+     *         as input to UserItemToItemItemGraphBuilder.
+     */
+    public DataBag userItemLinks(String user, int meanItemsPerUser) {
+        DataBag bag = bf.newDefaultBag();
+        for (String item : sampleDistinctItems(meanItemsPerUser)) {
+            bag.add(tf.newTupleNoCopy(list(user, item, sampleWeight())));
+        }
+        return bag;
+    }
+
+    /**
+     * @return { (user: chararray, item: chararray, weight: float, signal_types: map) } with
+     *         distinct items, as input to UserItemToItemItemGraphBuilderDetailed.
+     */
+    public DataBag userItemLinksDetailed(String user, int meanItemsPerUser) {
+        DataBag bag = bf.newDefaultBag();
+        for (String item : sampleDistinctItems(meanItemsPerUser)) {
+            Map<String, Integer> signalTypes = new HashMap<String, Integer>();
+            for (String type : SIGNAL_TYPES) {
+                if (signalTypes.isEmpty() || random.nextInt(3) == 0) {
+                    signalTypes.put(type, 1 + random.nextInt(3));
+                }
+            }
+            bag.add(tf.newTupleNoCopy(list(user, item, sampleWeight(), signalTypes)));
+        }
+        return bag;
+    }
+
+    /**
+     * The links of a single item_A before they are summed, i.e. one link per user that linked
+     * item_A with item_B.  Popular item_Bs appear many times.
+     *
+     * @return { (item_A: chararray, item_B: chararray, weight: float) },
+     *         as input to FilterItemItemLinks.
+     */
+    public DataBag itemItemLinks(String itemA, int meanLinksPerItem) {
+        DataBag bag = bf.newDefaultBag();
+        int numLinks = sampleCount(meanLinksPerItem, 100 * meanLinksPerItem);
+        for (int i = 0; i < numLinks; i++) {
+            bag.add(tf.newTupleNoCopy(list(itemA, sampleItem(), sampleWeight())));
+        }
+        return bag;
+    }
+
+    /**
+     * @return { (item_A: chararray, item_B: chararray, weight: float, link_counts: tuple) },
+     *         as input to FilterItemItemLinksDetailed.
+     */
+    public DataBag itemItemLinksDetailed(String itemA, int meanLinksPerItem) {
+        DataBag bag = bf.newDefaultBag();
+        int numLinks = sampleCount(meanLinksPerItem, 100 * meanLinksPerItem);
+        for (int i = 0; i < numLinks; i++) {
+            List<Object> linkCounts = new ArrayList<Object>();
+            linkCounts.add(1);
+            for (String type : SIGNAL_TYPES) {
+                if (linkCounts.size() == 1 || random.nextInt(3) == 0) {
+                    linkCounts.add(type);
+                    linkCounts.add(1 + random.nextInt(5));
+                }
+            }
+            bag.add(tf.newTupleNoCopy(list(itemA, sampleItem(), sampleWeight(), tf.newTupleNoCopy(linkCounts))));
+        }
+        return bag;
+    }
+
+    /**
+     * The candidate recommendations for a user, as made by recsys__BuildUserItemRecommendations:
+     * each item the user has seen is the reason for several candidates, and an item may be
+     * recommended for more than one reason.
+     *
+     * @param seen: The user's signals, from userItemLinks.
+     * @return { (user: chararray, item: chararray, weight: float, reason: chararray,
+     *            user_link: float, item_link: float) }
+     */
+    public DataBag userRecCandidates(DataBag seen, int meanCandidatesPerUser) {
+        DataBag bag = bf.newDefaultBag();
+        try {
+            List<Tuple> reasons = new ArrayList<Tuple>();
+            for (Tuple t : seen) {
+                reasons.add(t);
+            }
+
+            int numCandidates = sampleCount(meanCandidatesPerUser, 100 * meanCandidatesPerUser);
+            for (int i = 0; i < numCandidates; i++) {
+                Tuple reason = reasons.get(random.nextInt(reasons.size()));
+                float userLink = (Float) reason.get(2);
+                float itemLink = sampleWeight();
+                bag.add(tf.newTupleNoCopy(list(
+                    reason.get(0), sampleItem(), (float) Math.sqrt(userLink * itemLink),
+                    reason.get(1), userLink, itemLink)));
+            }
+        } catch (ExecException e) {
+            throw new RuntimeException(e);
+        }
+        return bag;
+    }
+
+    /**
+     * Copy the tuples of a bag, for UDFs that modify their input tuples.
+     */
+    public static DataBag copyTuples(DataBag bag) {
+        DataBag copy = bf.newDefaultBag();
+        for (Tuple t : bag) {
+            copy.add(tf.newTuple(t.getAll()));
+        }
+        return copy;
+    }
+
+    private List<String> sampleDistinctItems(int meanItemsPerUser) {
+        int numItems = sampleCount(meanItemsPerUser, items.length);
+        List<String> sampled = new ArrayList<String>(numItems);
+        Set<String> distinct = new HashSet<String>();
+        // Bounded so a small, skewed catalog can't loop forever.
+        for (int attempts = 0; sampled.size() < numItems && attempts < 10 * numItems; attempts++) {
+            String item = sampleItem();
+            if (distinct.add(item)) {
+                sampled.add(item);
+            }
+        }
+        return sampled;
+    }
+
+    private float sampleWeight() {
+        // Logistic scaled weights are in (0, 1); most users have a single event per item.
+        return random.nextInt(4) == 0 ? 0.96402758f : 0.76159416f;
+    }
+
+    private static List<Object> list(Object... fields) {
+        return new ArrayList<Object>(Arrays.asList(fields));
+    }
+}
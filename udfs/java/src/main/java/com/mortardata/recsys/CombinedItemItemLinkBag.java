@@ -0,0 +1,328 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongFloatIterator;
+import gnu.trove.map.hash.TLongFloatHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DefaultAbstractBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.tools.pigstats.PigStatusReporter;
+
+public class CombinedItemItemLinkBag extends DefaultAbstractBag {
+    private static final long serialVersionUID = 1L;
+    private static final TupleFactory tf = TupleFactory.getInstance();
+
+    private DataBag userItems;
+    private int maxLinksPerUser;
+    private int maxCombinedLinks;
+    private long size = -1;
+
+    /**
+     * A read-only bag of the partially summed item-item links formed by the items of many users.
+     *
+     * The links are generated lazily as the bag is iterated.  The iterator reads the users one at a
+     * time, links every pair of each user's top items, and adds the links to a primitive-keyed hash
+     * table of partial sums.  When the table holds maxCombinedLinks links, its partial sums are
+     * yielded and the table is cleared before the next user is read.  Only one user's items and
+     * the table are held in memory, so the memory used is bounded by maxCombinedLinks plus the
+     * links of a single user.
+     *
+     * For every partially summed pair of items (A, B) the bag yields (A, B, weight) immediately
+     * followed by (B, A, weight).  The same pair can be yielded again after a later flush.
+     *
+     * Tuple Schema: (item_A: chararray, item_B: chararray, weight: float)
+     *
+     * @param userItems: Bag of (user: chararray, item: chararray, weight: float) tuples
+     *                   sorted (or at least grouped) by user.
+     * @param maxLinksPerUser: Only the top maxLinksPerUser items of a user by weight are linked.
+     * @param maxCombinedLinks: Yield the partial sums once this many distinct links are held.
+     */
+    public CombinedItemItemLinkBag(DataBag userItems, int maxLinksPerUser, int maxCombinedLinks) {
+        this.userItems = userItems;
+        this.maxLinksPerUser = maxLinksPerUser;
+        this.maxCombinedLinks = maxCombinedLinks;
+    }
+
+    /**
+     * The number of links depends on when the table is flushed, so it is only known by iterating.
+     */
+    public long size() {
+        if (size < 0) {
+            long n = 0;
+            for (Iterator<Tuple> it = iterator(); it.hasNext(); it.next()) {
+                n++;
+            }
+            size = n;
+        }
+        return size;
+    }
+
+    public boolean isSorted() {
+        return false;
+    }
+
+    public boolean isDistinct() {
+        return false;
+    }
+
+    public Iterator<Tuple> iterator() {
+        return new LinkIterator();
+    }
+
+    public void add(Tuple t) {
+        throw new UnsupportedOperationException("CombinedItemItemLinkBag is read-only");
+    }
+
+    public void addAll(DataBag b) {
+        throw new UnsupportedOperationException("CombinedItemItemLinkBag is read-only");
+    }
+
+    public void clear() {
+        userItems = BagFactory.getInstance().newDefaultBag();
+        size = 0;
+    }
+
+    /**
+     * The links are regenerated from the input on every iteration, so there is never
+     * anything to spill.
+     */
+    public long spill() {
+        return 0;
+    }
+
+    public long getMemorySize() {
+        // object header + three references and three numbers; the input bag accounts for itself
+        return 16 + 24 + 16;
+    }
+
+    private class LinkIterator implements Iterator<Tuple> {
+        private final PigStatusReporter reporter = PigStatusReporter.getInstance();
+        private final Iterator<Tuple> input = userItems.iterator();
+
+        // Task-local dictionary of the items in pairWeights.
+        private final TObjectIntHashMap<String> itemIds = new TObjectIntHashMap<String>(
+            Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+        private final ArrayList<String> itemNames = new ArrayList<String>();
+
+        // Partial link weights keyed by (smaller item id << 32 | larger item id).
+        private final TLongFloatHashMap pairWeights = new TLongFloatHashMap();
+
+        // The items of the user currently being read.
+        private Object currentUser = null;
+        private String[] items = new String[16];
+        private float[] weights = new float[16];
+        private int numItems = 0;
+
+        // Set while the partial sums are being yielded.
+        private TLongFloatIterator flushing = null;
+        private Tuple reversed = null;
+        private boolean inputDone = false;
+
+        private Tuple next = null;
+
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = computeNext();
+                } catch (ExecException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return next != null;
+        }
+
+        public Tuple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("CombinedItemItemLinkBag is read-only");
+        }
+
+        private Tuple computeNext() throws ExecException {
+            while (true) {
+                if (reversed != null) {
+                    Tuple t = reversed;
+                    reversed = null;
+                    return t;
+                }
+
+                if (flushing != null) {
+                    if (flushing.hasNext()) {
+                        flushing.advance();
+                        String itemA = itemNames.get((int) (flushing.key() >>> 32));
+                        String itemB = itemNames.get((int) flushing.key());
+                        Float weight = flushing.value();
+
+                        reversed = newLink(itemB, itemA, weight);
+                        return newLink(itemA, itemB, weight);
+                    }
+                    flushing = null;
+                    clearLinks();
+                } else if (inputDone) {
+                    return null;
+                } else {
+                    readUntilFlush();
+                }
+            }
+        }
+
+        /**
+         * Read users until the table is full or the input is exhausted, then start yielding
+         * the partial sums.
+         */
+        private void readUntilFlush() throws ExecException {
+            while (input.hasNext()) {
+                Tuple t = input.next();
+                Object user = t.get(0);
+                boolean full = false;
+                if (currentUser == null || !currentUser.equals(user)) {
+                    addUserLinks();
+                    currentUser = user;
+                    full = pairWeights.size() >= maxCombinedLinks;
+                }
+                addItem((String) t.get(1), (Float) t.get(2));
+
+                if (full) {
+                    flushing = pairWeights.iterator();
+                    return;
+                }
+            }
+
+            addUserLinks();
+            inputDone = true;
+            flushing = pairWeights.iterator();
+        }
+
+        private void addItem(String item, float weight) {
+            if (numItems == items.length) {
+                String[] grownItems = new String[numItems * 2];
+                float[] grownWeights = new float[numItems * 2];
+                System.arraycopy(items, 0, grownItems, 0, numItems);
+                System.arraycopy(weights, 0, grownWeights, 0, numItems);
+                items = grownItems;
+                weights = grownWeights;
+            }
+            items[numItems] = item;
+            weights[numItems] = weight;
+            numItems++;
+        }
+
+        /**
+         * Link every pair of the current user's top items and add the links to the partial sums.
+         */
+        private void addUserLinks() {
+            if (numItems > 1) {
+                float minWeight = Float.NEGATIVE_INFINITY;
+                int numAtMinWeight = numItems;
+                if (numItems > maxLinksPerUser) {
+                    float[] sorted = new float[numItems];
+                    System.arraycopy(weights, 0, sorted, 0, numItems);
+                    Arrays.sort(sorted);
+                    minWeight = sorted[numItems - maxLinksPerUser];
+
+                    // Items tied with the cutoff weight are only kept until the limit is reached.
+                    int numAboveMinWeight = 0;
+                    for (int i = 0; i < numItems; i++) {
+                        if (weights[i] > minWeight) {
+                            numAboveMinWeight++;
+                        }
+                    }
+                    numAtMinWeight = maxLinksPerUser - numAboveMinWeight;
+                }
+
+                int[] ids = new int[Math.min(numItems, maxLinksPerUser)];
+                float[] idWeights = new float[ids.length];
+                int n = 0;
+                for (int i = 0; i < numItems; i++) {
+                    float weight = weights[i];
+                    if (weight > minWeight || (weight == minWeight && numAtMinWeight-- > 0)) {
+                        ids[n] = getItemId(items[i]);
+                        idWeights[n] = weight;
+                        n++;
+                    }
+                }
+
+                for (int i = 0; i < n; i++) {
+                    for (int j = i + 1; j < n; j++) {
+                        float weight = Math.min(idWeights[i], idWeights[j]);
+                        pairWeights.adjustOrPutValue(pairKey(ids[i], ids[j]), weight, weight);
+                    }
+                }
+            }
+
+            numItems = 0;
+        }
+
+        /**
+         * Reset the table and item dictionary once their partial sums have been yielded.
+         */
+        private void clearLinks() {
+            itemIds.clear();
+            itemNames.clear();
+            pairWeights.clear();
+
+            if (reporter != null) {
+                reporter.progress();
+            }
+        }
+
+        private int getItemId(String item) {
+            int id = itemIds.get(item);
+            if (id == -1) {
+                id = itemNames.size();
+                itemIds.put(item, id);
+                itemNames.add(item);
+            }
+            return id;
+        }
+
+        private Tuple newLink(String itemA, String itemB, Float weight) throws ExecException {
+            Tuple t = tf.newTuple(3);
+            t.set(0, itemA);
+            t.set(1, itemB);
+            t.set(2, weight);
+            return t;
+        }
+    }
+
+    private static long pairKey(int a, int b) {
+        if (a > b) {
+            int tmp = a;
+            a = b;
+            b = tmp;
+        }
+        return ((long) a << 32) | (b & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.THashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+
+public class DiversifyByMetadata extends EvalFunc<DataBag> {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+    private static final BagFactory bf = BagFactory.getInstance();
+    private static final int[] NO_FIELDS = new int[0];
+    // The id shared by all null metadata values, which form one group as they do in a Pig group.
+    private static final int NULL_FIELD = -2;
+
+    private final RecsysCounters counters = new RecsysCounters("DiversifyByMetadata");
+
+    // The metadata bag the table was built from.  Pig passes the same scalar bag to
+    // every call in a task, so the table is only built once.
+    private DataBag metadataBag;
+    // The ids of each item's metadata values, each distinct value having one id.
+    private THashMap<String, int[]> itemFields;
+
+    /**
+     * For a single item_A, takes the bag of its item-item links and the bag of all item metadata,
+     * and divides the weight of each link by its rank among the links of item_A to items with the
+     * same metadata value.  The strongest link to each metadata value keeps its weight, the second
+     * strongest is halved, and so on, so that item_A's recommendations are spread over more
+     * metadata values.
+     *
+     * This gives the same links as joining the links with the metadata by item_B and ranking them
+     * within each (item_A, metadata_field) group: links to items without metadata are dropped, and
+     * a link to an item with several metadata values is returned once for each.  Items whose
+     * metadata_field is null are ranked together, as one metadata value.  Links with a null weight
+     * are kept, ranked after every weighted link as in Pig's descending order, and returned with
+     * a null weight.
+     *
+     * The metadata is meant to be a Pig scalar, which every task reads once, and is dictionary
+     * encoded in memory the first time it is seen, so it should fit in the task's heap.
+     *
+     * Input Schema:
+     *  ( ii_links: { (item_A: chararray, item_B: chararray, weight: float, raw_weight: float) },
+     *    metadata: { (item: chararray, metadata_field: chararray) } )
+     * Output Schema: { (item_A: chararray, item_B: chararray, weight: float, raw_weight: float) }
+     */
+    public DiversifyByMetadata() {}
+
+    public Schema outputSchema(Schema input) {
+        try {
+            ArrayList<FieldSchema> tupleFields = new ArrayList<FieldSchema>(4);
+            tupleFields.add(new Schema.FieldSchema("item_A", DataType.CHARARRAY));
+            tupleFields.add(new Schema.FieldSchema("item_B", DataType.CHARARRAY));
+            tupleFields.add(new Schema.FieldSchema("weight", DataType.FLOAT));
+            tupleFields.add(new Schema.FieldSchema("raw_weight", DataType.FLOAT));
+
+            return new Schema(
+                new Schema.FieldSchema("ii_links_diverse",
+                    new Schema(
+                        new Schema.FieldSchema(null,
+                            new Schema(tupleFields),
+                        DataType.TUPLE)),
+                DataType.BAG)
+            );
+        } catch (FrontendException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public DataBag exec(Tuple input) throws IOException {
+        long startNanos = System.nanoTime();
+
+        DataBag links = (DataBag) input.get(0);
+        DataBag metadata = (DataBag) input.get(1);
+        if (metadata != metadataBag) {
+            itemFields = encode(metadata);
+            metadataBag = metadata;
+            counters.increment("metadata table loads", 1);
+        }
+
+        ArrayList<Tuple> sorted = new ArrayList<Tuple>((int) links.size());
+        for (Tuple t : links) {
+            sorted.add(t);
+        }
+        Collections.sort(sorted, new Comparator<Tuple>() {
+            public int compare(Tuple a, Tuple b) {
+                try {
+                    Float weightA = (Float) a.get(2);
+                    Float weightB = (Float) b.get(2);
+                    if (weightA == null) {
+                        return weightB == null ? 0 : 1;
+                    } else if (weightB == null) {
+                        return -1;
+                    }
+                    return Float.compare(weightB, weightA);
+                } catch (ExecException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        TIntIntHashMap fieldCounts = new TIntIntHashMap();
+        DataBag output = bf.newDefaultBag();
+        long numDropped = 0;
+        for (Tuple t : sorted) {
+            int[] fields = itemFields.get((String) t.get(1));
+            if (fields == null) {
+                numDropped++;
+                continue;
+            }
+            Float weight = (Float) t.get(2);
+            for (int field : fields) {
+                int rank = fieldCounts.adjustOrPutValue(field, 1, 1);
+                Tuple link = tf.newTuple(4);
+                link.set(0, t.get(0));
+                link.set(1, t.get(1));
+                link.set(2, weight == null ? null : weight / rank);
+                link.set(3, t.get(3));
+                output.add(link);
+            }
+        }
+
+        counters.increment("links", sorted.size());
+        counters.increment("links without metadata", numDropped);
+        counters.recordCall(startNanos);
+        return output;
+    }
+
+    private static THashMap<String, int[]> encode(DataBag metadata) throws ExecException {
+        TObjectIntHashMap<String> fieldIds = new TObjectIntHashMap<String>(
+            Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+        THashMap<String, int[]> itemFields = new THashMap<String, int[]>();
+
+        for (Tuple t : metadata) {
+            String item = (String) t.get(0);
+            String field = (String) t.get(1);
+            if (item == null) {
+                continue;
+            }
+
+            int id = field == null ? NULL_FIELD : fieldIds.get(field);
+            if (id == -1) {
+                id = fieldIds.size();
+                fieldIds.put(field, id);
+            }
+
+            int[] fields = itemFields.get(item);
+            if (fields == null) {
+                fields = NO_FIELDS;
+            }
+            int[] grown = new int[fields.length + 1];
+            System.arraycopy(fields, 0, grown, 0, fields.length);
+            grown[fields.length] = id;
+            itemFields.put(item, grown);
+        }
+        return itemFields;
+    }
+}
@@ -16,12 +16,11 @@
 
 package com.mortardata.recsys;
 
-import gnu.trove.iterator.TObjectFloatIterator;
-import gnu.trove.map.hash.TObjectFloatHashMap;
-
+import java.io.IOException;
 import java.util.ArrayList;
 
 import org.apache.pig.Accumulator;
+import org.apache.pig.Algebraic;
 import org.apache.pig.EvalFunc;
 import org.apache.pig.backend.executionengine.ExecException;
 import org.apache.pig.data.BagFactory;
@@ -36,13 +35,19 @@ import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
 import com.google.common.collect.ImmutableList;
 
 
-public class FilterItemItemLinks extends EvalFunc<DataBag> implements Accumulator<DataBag> {
+public class FilterItemItemLinks extends EvalFunc<DataBag>
+        implements Accumulator<DataBag>, Algebraic {
     private static final TupleFactory tf = TupleFactory.getInstance();
     private static final BagFactory bf = BagFactory.getInstance();
 
+    private final RecsysCounters counters = new RecsysCounters("FilterItemItemLinks");
+
     private float minLinkWeight;
-    private TObjectFloatHashMap<String> inputItems;
+    private byte itemType = DataType.UNKNOWN;
+    private ItemKeyedMaps.FloatSums inputItems;
     private DataBag outputItems;
+    private long numInputLinks;
+    private long startNanos;
 
     /**
      * For a single item_A, this UDF takes a bag of weighted item-item links and returns a bag of 
@@ -54,6 +59,14 @@ public class FilterItemItemLinks extends EvalFunc<DataBag> implements Accumulato
      * Input Schema:  { (item_A: chararray, item_B: chararray, weight: float) }
      * Output Schema: { (item_B: chararray, weight: float) }
      *
+     * Items may be chararrays or ints dictionary encoded by recsys__EncodeUserItemSignals;
+     * the output item_B has the same type as the input item_B.  Int ids are summed in a
+     * primitive-keyed map (see ItemKeyedMaps).
+     *
+     * When used directly on a group (not flattened in the same foreach) this UDF is combinable:
+     * the Initial and Intermed stages pre-sum the weights of each item_B map-side and only the
+     * Final stage applies the minimum weight filter.
+     *
      * @param minLinkWeight: Any item-item link with a weight less than this will be removed.
      */
     public FilterItemItemLinks(String minLinkWeight) {
@@ -64,7 +77,7 @@ public class FilterItemItemLinks extends EvalFunc<DataBag> implements Accumulato
     public Schema outputSchema(Schema input) {
         try {
             ArrayList<FieldSchema> tupleFields = new ArrayList<FieldSchema>(2);
-            tupleFields.add(new Schema.FieldSchema("item_B", DataType.CHARARRAY));
+            tupleFields.add(new Schema.FieldSchema("item_B", RecsysSchemas.bagFieldType(input, 0, 1)));
             tupleFields.add(new Schema.FieldSchema("weight", DataType.FLOAT));
             
             return new Schema(
@@ -90,21 +103,26 @@ public class FilterItemItemLinks extends EvalFunc<DataBag> implements Accumulato
 
 
     public void cleanup() {
-        inputItems = new TObjectFloatHashMap<String>();
+        inputItems = null;
         outputItems = bf.newDefaultBag();
+        numInputLinks = 0;
+        startNanos = 0;
     }
 
     public DataBag getValue() {
-        TObjectFloatIterator<String> it = inputItems.iterator();
-        while (it.hasNext()) {
-            it.advance();
-            if (it.value() >= minLinkWeight) {
-                outputItems.add(tf.newTupleNoCopy(
-                    ImmutableList.of(it.key(), it.value())
-                ));
-            }
+        int numLinks = 0;
+        if (inputItems != null) {
+            inputItems.addTo(outputItems, minLinkWeight);
+            numLinks = inputItems.size();
         }
 
+        counters.increment("input links", numInputLinks);
+        counters.increment("links kept", outputItems.size());
+        counters.increment("links dropped by min weight", numLinks - outputItems.size());
+        counters.histogram("input bag size", numInputLinks);
+        counters.histogram("links per item_A", numLinks);
+        counters.recordCall(startNanos);
+
         return outputItems;
     }
 
@@ -113,16 +131,141 @@ public class FilterItemItemLinks extends EvalFunc<DataBag> implements Accumulato
      *                  with common item_A
      */
     public void accumulate(Tuple input) {
+        if (startNanos == 0) {
+            startNanos = System.nanoTime();
+        }
         try {
+            if (itemType == DataType.UNKNOWN) {
+                itemType = RecsysSchemas.bagFieldType(getInputSchema(), 0, 1, DataType.UNKNOWN);
+            }
             DataBag inputBag = (DataBag) input.get(0);
 
             for (Tuple t : inputBag) {
-                String item = (String) t.get(1);
+                Object item = t.get(1);
                 float weight = (Float) t.get(2);
-                inputItems.adjustOrPutValue(item, weight, weight);
+                if (inputItems == null) {
+                    inputItems = ItemKeyedMaps.FloatSums.create(ItemKeyedMaps.keyType(itemType, item));
+                }
+                inputItems.add(item, weight);
+                numInputLinks++;
             }
         } catch (ExecException e) {
             throw new RuntimeException(e);
+        } catch (FrontendException e) {
+            throw new RuntimeException(e);
         }
     }
+
+    public String getInitial() {
+        return Initial.class.getName();
+    }
+
+    public String getIntermed() {
+        return Intermed.class.getName();
+    }
+
+    public String getFinal() {
+        return Final.class.getName();
+    }
+
+    /**
+     * Input Schema:  ( { (item_A: chararray, item_B: chararray, weight: float) } )
+     * Output Schema: ( { (item_B: chararray, weight: float) } )
+     */
+    public static class Initial extends EvalFunc<Tuple> {
+        private final RecsysCounters counters = new RecsysCounters("FilterItemItemLinks");
+
+        public Initial() {}
+        public Initial(String minLinkWeight) {}
+
+        public Tuple exec(Tuple input) throws IOException {
+            DataBag inputBag = (DataBag) input.get(0);
+            DataBag partial = bf.newDefaultBag();
+            for (Tuple t : inputBag) {
+                partial.add(tf.newTupleNoCopy(
+                    ImmutableList.of(t.get(1), t.get(2))
+                ));
+            }
+            counters.increment("input links", partial.size());
+            return tf.newTuple(partial);
+        }
+    }
+
+    /**
+     * Input Schema:  ( { ( { (item_B: chararray, weight: float) } ) } )
+     * Output Schema: ( { (item_B: chararray, weight: float) } )
+     */
+    public static class Intermed extends EvalFunc<Tuple> {
+        public Intermed() {}
+        public Intermed(String minLinkWeight) {}
+
+        public Tuple exec(Tuple input) throws IOException {
+            ItemKeyedMaps.FloatSums sums = sumPartials((DataBag) input.get(0));
+            return tf.newTuple(toBag(sums, Float.NEGATIVE_INFINITY));
+        }
+    }
+
+    /**
+     * Input Schema:  ( { ( { (item_B: chararray, weight: float) } ) } )
+     * Output Schema: { (item_B: chararray, weight: float) }
+     */
+    public static class Final extends EvalFunc<DataBag> {
+        private final RecsysCounters counters = new RecsysCounters("FilterItemItemLinks");
+        private float minLinkWeight;
+
+        // Pig instantiates the stages without arguments to check their return types, and with
+        // the define's arguments to run them.  This one must never filter links.
+        public Final() {
+            this.minLinkWeight = Float.NaN;
+        }
+
+        public Final(String minLinkWeight) {
+            this.minLinkWeight = Float.parseFloat(minLinkWeight);
+        }
+
+        public DataBag exec(Tuple input) throws IOException {
+            if (Float.isNaN(minLinkWeight)) {
+                throw new IllegalStateException("FilterItemItemLinks.Final needs min_link_weight");
+            }
+            long start = System.nanoTime();
+            ItemKeyedMaps.FloatSums sums = sumPartials((DataBag) input.get(0));
+            DataBag output = toBag(sums, minLinkWeight);
+
+            int numLinks = sums == null ? 0 : sums.size();
+            counters.increment("links kept", output.size());
+            counters.increment("links dropped by min weight", numLinks - output.size());
+            counters.histogram("links per item_A", numLinks);
+            counters.recordCall(start);
+            return output;
+        }
+    }
+
+    /**
+     * Sum the partial weights of each item_B, keyed by the type of the first item_B since Pig
+     * does not pass the stages their input schemas.  Returns null if there are no links.
+     */
+    private static ItemKeyedMaps.FloatSums sumPartials(DataBag partials)
+            throws ExecException {
+        ItemKeyedMaps.FloatSums sums = null;
+        for (Tuple partial : partials) {
+            DataBag links = (DataBag) partial.get(0);
+            for (Tuple t : links) {
+                Object item = t.get(0);
+                float weight = (Float) t.get(1);
+                if (sums == null) {
+                    sums = ItemKeyedMaps.FloatSums.create(ItemKeyedMaps.keyType(DataType.UNKNOWN, item));
+                }
+                sums.add(item, weight);
+            }
+        }
+        return sums;
+    }
+
+    private static DataBag toBag(ItemKeyedMaps.FloatSums sums, float minLinkWeight) {
+        DataBag output = bf.newDefaultBag();
+        if (sums != null) {
+            sums.addTo(output, minLinkWeight);
+        }
+        return output;
+    }
 }
@@ -1,8 +1,8 @@
 package com.mortardata.recsys;
 
 import com.google.common.collect.ImmutableList;
-import gnu.trove.iterator.TObjectFloatIterator;
-import gnu.trove.map.hash.TObjectFloatHashMap;
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TObjectIntHashMap;
 import org.apache.pig.Accumulator;
 import org.apache.pig.EvalFunc;
 import org.apache.pig.backend.executionengine.ExecException;
@@ -22,10 +22,24 @@ public class FilterItemItemLinksDetailed extends EvalFunc<DataBag> implements Ac
     private static final TupleFactory tf = TupleFactory.getInstance();
     private static final BagFactory bf = BagFactory.getInstance();
 
+    private final RecsysCounters counters = new RecsysCounters("FilterItemItemLinksDetailed");
+
     private float minLinkWeight;
-    private TObjectFloatHashMap<String> inputItems;
-    private Map<String, Map<String, Integer>> inputSignals;
-    private DataBag outputItems;
+
+    // Task-local dictionary of the signal types in the link counts.
+    private TObjectIntHashMap<String> typeIds;
+    private ArrayList<String> typeNames;
+
+    // The summed weight, number of users and signal type counts of each item_B.
+    private TObjectIntHashMap<String> itemIds;
+    private ArrayList<String> itemNames;
+    private float[] weights;
+    private int[] numUsers;
+    private int[][] signalCounts;
+    private boolean[][] hasSignalType;
+
+    private long numInputLinks;
+    private long startNanos;
 
     /**
      * For a single item_A, this UDF takes a bag of weighted item-item links and returns a bag of
@@ -34,7 +48,13 @@ public class FilterItemItemLinksDetailed extends EvalFunc<DataBag> implements Ac
      * The input bag should have a common item_A (results of a group on item_A) so
      * item_A isn't returned because the caller can easily add it back.
      *
-     * Input Schema:  { (item_A: chararray, item_B: chararray, weight: float, link_data: map) }
+     * link_counts are the flat tuples written by UserItemToItemItemGraphBuilderDetailed:
+     * (num_users, signal_type_1, count_1, signal_type_2, count_2, ...).  They are summed into
+     * primitive arrays per item_B, and only turned into a link_data map for the links that pass
+     * the minimum weight.  link_data maps each signal type in any of the link_counts to its
+     * count, even when the count is 0, and NUM_USERS to the number of users that formed the link.
+     *
+     * Input Schema:  { (item_A: chararray, item_B: chararray, weight: float, link_counts: tuple) }
      * Output Schema: { (item_B: chararray, weight: float, link_data: map) }
      *
      * @param minLinkWeight: Any item-item link with a weight less than this will be removed.
@@ -46,7 +66,7 @@ public class FilterItemItemLinksDetailed extends EvalFunc<DataBag> implements Ac
 
     public Schema outputSchema(Schema input) {
         try {
-            ArrayList<Schema.FieldSchema> tupleFields = new ArrayList<Schema.FieldSchema>(2);
+            ArrayList<Schema.FieldSchema> tupleFields = new ArrayList<Schema.FieldSchema>(3);
             tupleFields.add(new Schema.FieldSchema("item_B", DataType.CHARARRAY));
             tupleFields.add(new Schema.FieldSchema("weight", DataType.FLOAT));
             tupleFields.add(new Schema.FieldSchema("link_data", DataType.MAP));
@@ -74,60 +94,120 @@ public class FilterItemItemLinksDetailed extends EvalFunc<DataBag> implements Ac
 
 
     public void cleanup() {
-        inputItems = new TObjectFloatHashMap<String>();
-        inputSignals = new HashMap<String, Map<String, Integer>>();
-        outputItems = bf.newDefaultBag();
+        typeIds = new TObjectIntHashMap<String>(
+            Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+        typeNames = new ArrayList<String>();
+        itemIds = new TObjectIntHashMap<String>(
+            Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+        itemNames = new ArrayList<String>();
+        weights = new float[16];
+        numUsers = new int[16];
+        signalCounts = new int[16][];
+        hasSignalType = new boolean[16][];
+        numInputLinks = 0;
+        startNanos = 0;
     }
 
     public DataBag getValue() {
-        TObjectFloatIterator<String> it = inputItems.iterator();
-        while (it.hasNext()) {
-            it.advance();
-            if (it.value() >= minLinkWeight) {
+        DataBag outputItems = bf.newDefaultBag();
+        for (int i = 0; i < itemNames.size(); i++) {
+            if (weights[i] >= minLinkWeight) {
+                Map<String, Integer> linkData = new HashMap<String, Integer>();
+                int[] counts = signalCounts[i];
+                for (int k = 0; k < counts.length; k++) {
+                    if (hasSignalType[i][k]) {
+                        linkData.put(typeNames.get(k), counts[k]);
+                    }
+                }
+                linkData.put("NUM_USERS", numUsers[i]);
+
                 outputItems.add(tf.newTupleNoCopy(
-                        ImmutableList.of(it.key(), it.value(), inputSignals.get(it.key()))
+                        ImmutableList.of(itemNames.get(i), weights[i], linkData)
                 ));
-
             }
         }
 
+        counters.increment("input links", numInputLinks);
+        counters.increment("links kept", outputItems.size());
+        counters.increment("links dropped by min weight", itemNames.size() - outputItems.size());
+        counters.histogram("input bag size", numInputLinks);
+        counters.histogram("links per item_A", itemNames.size());
+        counters.recordCall(startNanos);
+
         return outputItems;
     }
 
     /**
-     * @param input:  Bag of (item_A: chararray, item_B: chararray, weight: float, link_data: map) tuples
+     * @param input:  Bag of (item_A: chararray, item_B: chararray, weight: float, link_counts: tuple) tuples
      *                  with common item_A
      */
     public void accumulate(Tuple input) {
+        if (startNanos == 0) {
+            startNanos = System.nanoTime();
+        }
         try {
             DataBag inputBag = (DataBag) input.get(0);
             for (Tuple t : inputBag) {
-                String item = (String) t.get(1);
-                float weight = (Float) t.get(2);
-                Map<String, Integer> link_data = (Map) t.get(3);
-                inputItems.adjustOrPutValue(item, weight, weight);
-                addToMap(item, link_data);
+                int i = getItemId((String) t.get(1));
+                weights[i] += (Float) t.get(2);
+                addCounts(i, (Tuple) t.get(3));
+                numInputLinks++;
             }
         } catch (ExecException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void addToMap(String item, Map<String, Integer> signals) {
-        if (inputSignals.containsKey(item)) {
-            Map<String, Integer> item_signals = inputSignals.get(item);
-            for (String s : signals.keySet()) {
-                if (item_signals.containsKey(s)) {
-                    item_signals.put(s, item_signals.get(s) + signals.get(s));
-                }  else{
-                    item_signals.put(s, signals.get(s));
-                }
+    private void addCounts(int i, Tuple linkCounts) throws ExecException {
+        numUsers[i] += (Integer) linkCounts.get(0);
+        for (int f = 1; f + 1 < linkCounts.size(); f += 2) {
+            int k = getTypeId((String) linkCounts.get(f));
+            if (k >= signalCounts[i].length) {
+                int[] grown = new int[typeNames.size()];
+                boolean[] grownHasType = new boolean[typeNames.size()];
+                System.arraycopy(signalCounts[i], 0, grown, 0, signalCounts[i].length);
+                System.arraycopy(hasSignalType[i], 0, grownHasType, 0, hasSignalType[i].length);
+                signalCounts[i] = grown;
+                hasSignalType[i] = grownHasType;
             }
-            inputSignals.put(item, item_signals);
+            signalCounts[i][k] += (Integer) linkCounts.get(f + 1);
+            hasSignalType[i][k] = true;
         }
-        else {
-            inputSignals.put(item, signals);
+    }
+
+    private int getItemId(String item) {
+        int id = itemIds.get(item);
+        if (id == -1) {
+            id = itemNames.size();
+            itemIds.put(item, id);
+            itemNames.add(item);
+            if (id == weights.length) {
+                float[] grownWeights = new float[id * 2];
+                int[] grownNumUsers = new int[id * 2];
+                int[][] grownSignalCounts = new int[id * 2][];
+                boolean[][] grownHasSignalType = new boolean[id * 2][];
+                System.arraycopy(weights, 0, grownWeights, 0, id);
+                System.arraycopy(numUsers, 0, grownNumUsers, 0, id);
+                System.arraycopy(signalCounts, 0, grownSignalCounts, 0, id);
+                System.arraycopy(hasSignalType, 0, grownHasSignalType, 0, id);
+                weights = grownWeights;
+                numUsers = grownNumUsers;
+                signalCounts = grownSignalCounts;
+                hasSignalType = grownHasSignalType;
+            }
+            signalCounts[id] = new int[typeNames.size()];
+            hasSignalType[id] = new boolean[typeNames.size()];
         }
+        return id;
+    }
 
+    private int getTypeId(String type) {
+        int id = typeIds.get(type);
+        if (id == -1) {
+            id = typeNames.size();
+            typeIds.put(type, id);
+            typeNames.add(type);
+        }
+        return id;
     }
 }
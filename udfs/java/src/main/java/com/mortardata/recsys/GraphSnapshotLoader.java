@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.pig.Expression;
+import org.apache.pig.LoadFunc;
+import org.apache.pig.LoadMetadata;
+import org.apache.pig.ResourceSchema;
+import org.apache.pig.ResourceStatistics;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigSplit;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+public class GraphSnapshotLoader extends LoadFunc implements LoadMetadata {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+
+    private String signature;
+    private GraphSnapshotRecordReader reader;
+
+    /**
+     * Loads a snapshot written by GraphSnapshotStorage, with the schema it was stored with.
+     *
+     * The snapshot must have been stored with the same signature.  A snapshot of other signals or
+     * parameters fails the script when it is planned, before any job runs, and again in the task
+     * if it is replaced in the meantime, so a stale graph is never silently reused.
+     *
+     * Output Schema: The schema of the relation stored.
+     *
+     * @param signature: Identifies the signals and parameters the graph was built from.
+     */
+    public GraphSnapshotLoader(String signature) {
+        this.signature = signature;
+    }
+
+    public void setLocation(String location, Job job) throws IOException {
+        FileInputFormat.setInputPaths(job, location);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public InputFormat getInputFormat() throws IOException {
+        return new GraphSnapshotInputFormat();
+    }
+
+    @SuppressWarnings("rawtypes")
+    public void prepareToRead(RecordReader reader, PigSplit split) throws IOException {
+        this.reader = (GraphSnapshotRecordReader) reader;
+        checkSignature(this.reader.header, this.reader.file);
+    }
+
+    public Tuple getNext() throws IOException {
+        return reader.nextRow();
+    }
+
+    public ResourceSchema getSchema(String location, Job job) throws IOException {
+        Path file = firstFile(location, job);
+        FileSystem fs = file.getFileSystem(job.getConfiguration());
+        FSDataInputStream in = fs.open(file);
+        try {
+            GraphSnapshotStorage.Header header = GraphSnapshotStorage.Header.read(in, file);
+            checkSignature(header, file);
+            return header.toResourceSchema();
+        } finally {
+            in.close();
+        }
+    }
+
+    public ResourceStatistics getStatistics(String location, Job job) throws IOException {
+        return null;
+    }
+
+    public String[] getPartitionKeys(String location, Job job) throws IOException {
+        return null;
+    }
+
+    public void setPartitionFilter(Expression partitionFilter) throws IOException {}
+
+    private void checkSignature(GraphSnapshotStorage.Header header, Path file) throws IOException {
+        if (!header.signature.equals(signature)) {
+            throw new IOException("Graph snapshot " + file + " was built from '" + header.signature
+                                  + "', not '" + signature + "'");
+        }
+    }
+
+    /**
+     * The first data file of a snapshot, skipping the _SUCCESS and other hidden files.
+     */
+    private static Path firstFile(String location, Job job) throws IOException {
+        Path path = new Path(location);
+        FileSystem fs = path.getFileSystem(job.getConfiguration());
+        FileStatus[] matches = fs.globStatus(path);
+        if (matches != null) {
+            for (FileStatus match : matches) {
+                FileStatus[] files = match.isDir() ? fs.listStatus(match.getPath()) : new FileStatus[] { match };
+                for (FileStatus file : files) {
+                    String name = file.getPath().getName();
+                    if (!file.isDir() && !name.startsWith("_") && !name.startsWith(".")) {
+                        return file.getPath();
+                    }
+                }
+            }
+        }
+        throw new IOException("No graph snapshot found at " + location);
+    }
+
+    public static class GraphSnapshotInputFormat extends FileInputFormat<NullWritable, Tuple> {
+        protected boolean isSplitable(JobContext context, Path file) {
+            return false;
+        }
+
+        public RecordReader<NullWritable, Tuple> createRecordReader(InputSplit split,
+                                                                     TaskAttemptContext context) {
+            return new GraphSnapshotRecordReader();
+        }
+    }
+
+    /**
+     * Decodes a snapshot file a block at a time.  See GraphSnapshotStorage for the layout.
+     */
+    static class GraphSnapshotRecordReader extends RecordReader<NullWritable, Tuple> {
+        private Path file;
+        private long length;
+        private FSDataInputStream fileIn;
+        private DataInputStream in;
+        private GraphSnapshotStorage.Header header;
+
+        private Tuple[] block = new Tuple[0];
+        private int numRows;
+        private int nextRow;
+        private boolean done;
+        private Tuple current;
+
+        public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+            file = ((FileSplit) split).getPath();
+            length = ((FileSplit) split).getLength();
+            fileIn = file.getFileSystem(context.getConfiguration()).open(file);
+            header = GraphSnapshotStorage.Header.read(fileIn, file);
+            in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(fileIn)));
+        }
+
+        public boolean nextKeyValue() throws IOException {
+            current = nextRow();
+            return current != null;
+        }
+
+        public NullWritable getCurrentKey() {
+            return NullWritable.get();
+        }
+
+        public Tuple getCurrentValue() {
+            return current;
+        }
+
+        public float getProgress() throws IOException {
+            if (done || length == 0) {
+                return 1.0f;
+            }
+            return Math.min(1.0f, fileIn.getPos() / (float) length);
+        }
+
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+
+        Tuple nextRow() throws IOException {
+            if (nextRow == numRows) {
+                if (done || !readBlock()) {
+                    return null;
+                }
+            }
+            return block[nextRow++];
+        }
+
+        private boolean readBlock() throws IOException {
+            numRows = in.readInt();
+            nextRow = 0;
+            if (numRows == 0) {
+                done = true;
+                return false;
+            }
+
+            if (block.length < numRows) {
+                block = new Tuple[numRows];
+            }
+            for (int r = 0; r < numRows; r++) {
+                block[r] = tf.newTuple(header.types.length);
+            }
+
+            byte[] nulls = new byte[(numRows + 7) >>> 3];
+            for (int c = 0; c < header.types.length; c++) {
+                in.readFully(nulls);
+                byte type = header.types[c];
+
+                String[] dictionary = null;
+                if (type == DataType.CHARARRAY) {
+                    dictionary = new String[WritableUtils.readVInt(in)];
+                    for (int i = 0; i < dictionary.length; i++) {
+                        dictionary[i] = WritableUtils.readString(in);
+                    }
+                }
+
+                for (int r = 0; r < numRows; r++) {
+                    if ((nulls[r >>> 3] & (1 << (r & 7))) != 0) {
+                        continue;
+                    }
+                    Object value;
+                    switch (type) {
+                        case DataType.CHARARRAY: value = dictionary[WritableUtils.readVInt(in)]; break;
+                        case DataType.INTEGER:   value = WritableUtils.readVInt(in); break;
+                        case DataType.LONG:      value = WritableUtils.readVLong(in); break;
+                        case DataType.FLOAT:     value = in.readFloat(); break;
+                        default:                 value = in.readDouble(); break;
+                    }
+                    block[r].set(c, value);
+                }
+            }
+            return true;
+        }
+    }
+}
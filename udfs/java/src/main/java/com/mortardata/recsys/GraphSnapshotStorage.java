@@ -0,0 +1,312 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.pig.ResourceSchema;
+import org.apache.pig.ResourceSchema.ResourceFieldSchema;
+import org.apache.pig.StoreFunc;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.util.UDFContext;
+
+public class GraphSnapshotStorage extends StoreFunc {
+    static final int MAGIC = 0x52534753;    // "RSGS"
+    static final int VERSION = 1;
+    static final int BLOCK_ROWS = 4096;
+
+    private static final String SCHEMA_PROPERTY = "recsys.graph.snapshot.schema";
+
+    private String signature;
+    private String udfcSignature;
+    private GraphSnapshotRecordWriter writer;
+
+    /**
+     * Stores a relation of the item-item graph, such as ii_links_raw or item_weights, as a snapshot
+     * that GraphSnapshotLoader reads back, so that several recommendation variants can share one
+     * build of the graph.  The snapshot is tagged with a signature of the signals and parameters it
+     * was built from, and GraphSnapshotLoader refuses to read it as anything else.
+     *
+     * Each output file has a header, with the signature and the names and types of the fields,
+     * followed by deflate-compressed blocks of up to 4096 rows stored column by column: each
+     * column is a bitmap of its null values followed by its other values, and the chararray
+     * columns are dictionary encoded within the block.  Since the graph arrives grouped by
+     * item_A, each item_A is stored about once per block instead of once per link.
+     *
+     * Input Schema: Fields of type chararray, int, long, float or double.
+     *
+     * @param signature: Identifies the signals and parameters the graph was built from.
+     */
+    public GraphSnapshotStorage(String signature) {
+        this.signature = signature;
+    }
+
+    @SuppressWarnings("rawtypes")
+    public OutputFormat getOutputFormat() {
+        return new GraphSnapshotOutputFormat();
+    }
+
+    public void setStoreLocation(String location, Job job) throws IOException {
+        FileOutputFormat.setOutputPath(job, new Path(location));
+    }
+
+    public void setStoreFuncUDFContextSignature(String signature) {
+        this.udfcSignature = signature;
+    }
+
+    public void checkSchema(ResourceSchema s) throws IOException {
+        StringBuilder fields = new StringBuilder();
+        for (ResourceFieldSchema field : s.getFields()) {
+            if (!isSupportedType(field.getType())) {
+                throw new IOException("GraphSnapshotStorage can not store field " + field.getName()
+                                      + " of type " + DataType.findTypeName(field.getType()));
+            }
+            if (fields.length() > 0) {
+                fields.append(',');
+            }
+            fields.append(field.getName()).append(':').append(field.getType());
+        }
+        getProperties().setProperty(SCHEMA_PROPERTY, fields.toString());
+    }
+
+    @SuppressWarnings("rawtypes")
+    public void prepareToWrite(RecordWriter writer) throws IOException {
+        String fields = getProperties().getProperty(SCHEMA_PROPERTY);
+        if (fields == null) {
+            throw new IOException("GraphSnapshotStorage needs the schema of the relation stored");
+        }
+
+        String[] nameTypes = fields.split(",");
+        String[] names = new String[nameTypes.length];
+        byte[] types = new byte[nameTypes.length];
+        for (int i = 0; i < nameTypes.length; i++) {
+            int colon = nameTypes[i].lastIndexOf(':');
+            names[i] = nameTypes[i].substring(0, colon);
+            types[i] = Byte.parseByte(nameTypes[i].substring(colon + 1));
+        }
+
+        this.writer = (GraphSnapshotRecordWriter) writer;
+        this.writer.writeHeader(signature, names, types);
+    }
+
+    public void putNext(Tuple t) throws IOException {
+        writer.write(NullWritable.get(), t);
+    }
+
+    private Properties getProperties() {
+        return UDFContext.getUDFContext().getUDFProperties(getClass(), new String[] { udfcSignature });
+    }
+
+    static boolean isSupportedType(byte type) {
+        return type == DataType.CHARARRAY || type == DataType.INTEGER || type == DataType.LONG
+            || type == DataType.FLOAT || type == DataType.DOUBLE;
+    }
+
+    /**
+     * The header of a snapshot file.
+     */
+    static class Header {
+        final String signature;
+        final String[] names;
+        final byte[] types;
+
+        Header(String signature, String[] names, byte[] types) {
+            this.signature = signature;
+            this.names = names;
+            this.types = types;
+        }
+
+        static Header read(DataInput in, Path file) throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a graph snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has graph snapshot version " + version
+                                      + ", expected " + VERSION);
+            }
+            String signature = WritableUtils.readString(in);
+            int numFields = in.readInt();
+            String[] names = new String[numFields];
+            byte[] types = new byte[numFields];
+            for (int i = 0; i < numFields; i++) {
+                names[i] = WritableUtils.readString(in);
+                types[i] = in.readByte();
+            }
+            return new Header(signature, names, types);
+        }
+
+        ResourceSchema toResourceSchema() {
+            Schema schema = new Schema();
+            for (int i = 0; i < names.length; i++) {
+                schema.add(new Schema.FieldSchema(names[i], types[i]));
+            }
+            return new ResourceSchema(schema);
+        }
+    }
+
+    public static class GraphSnapshotOutputFormat extends FileOutputFormat<NullWritable, Tuple> {
+        public RecordWriter<NullWritable, Tuple> getRecordWriter(TaskAttemptContext context)
+                throws IOException, InterruptedException {
+            Path file = getDefaultWorkFile(context, "");
+            FileSystem fs = file.getFileSystem(context.getConfiguration());
+            return new GraphSnapshotRecordWriter(new DataOutputStream(fs.create(file, false)));
+        }
+    }
+
+    /**
+     * Buffers a block of rows column by column and writes it out once it is full.
+     */
+    static class GraphSnapshotRecordWriter extends RecordWriter<NullWritable, Tuple> {
+        private final DataOutputStream file;
+        private DataOutputStream out;
+
+        private byte[] types;
+        private Object[][] columns;
+        private int numRows;
+
+        private final TObjectIntHashMap<String> dictionary = new TObjectIntHashMap<String>(
+            Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+        private final ArrayList<String> dictionaryValues = new ArrayList<String>();
+
+        GraphSnapshotRecordWriter(DataOutputStream file) {
+            this.file = file;
+        }
+
+        void writeHeader(String signature, String[] names, byte[] types) throws IOException {
+            file.writeInt(MAGIC);
+            file.writeInt(VERSION);
+            WritableUtils.writeString(file, signature);
+            file.writeInt(names.length);
+            for (int i = 0; i < names.length; i++) {
+                WritableUtils.writeString(file, names[i]);
+                file.writeByte(types[i]);
+            }
+
+            this.types = types;
+            this.columns = new Object[types.length][BLOCK_ROWS];
+            this.out = new DataOutputStream(new DeflaterOutputStream(file));
+        }
+
+        public void write(NullWritable ignored, Tuple t) throws IOException {
+            for (int c = 0; c < columns.length; c++) {
+                columns[c][numRows] = t.get(c);
+            }
+            if (++numRows == BLOCK_ROWS) {
+                writeBlock();
+            }
+        }
+
+        public void close(TaskAttemptContext context) throws IOException {
+            if (out == null) {
+                file.close();
+                return;
+            }
+            writeBlock();
+            out.writeInt(0);
+            out.close();
+        }
+
+        private void writeBlock() throws IOException {
+            if (numRows == 0) {
+                return;
+            }
+
+            out.writeInt(numRows);
+            for (int c = 0; c < columns.length; c++) {
+                Object[] column = columns[c];
+                byte[] nulls = new byte[(numRows + 7) >>> 3];
+                for (int r = 0; r < numRows; r++) {
+                    if (column[r] == null) {
+                        nulls[r >>> 3] |= 1 << (r & 7);
+                    }
+                }
+                out.write(nulls);
+
+                if (types[c] == DataType.CHARARRAY) {
+                    writeStrings(column);
+                } else {
+                    for (int r = 0; r < numRows; r++) {
+                        if (column[r] != null) {
+                            writeNumber(types[c], (Number) column[r]);
+                        }
+                    }
+                }
+                Arrays.fill(column, 0, numRows, null);
+            }
+            numRows = 0;
+        }
+
+        private void writeStrings(Object[] column) throws IOException {
+            int[] ids = new int[numRows];
+            for (int r = 0; r < numRows; r++) {
+                if (column[r] == null) {
+                    continue;
+                }
+                String value = (String) column[r];
+                int id = dictionary.get(value);
+                if (id == -1) {
+                    id = dictionaryValues.size();
+                    dictionary.put(value, id);
+                    dictionaryValues.add(value);
+                }
+                ids[r] = id;
+            }
+
+            WritableUtils.writeVInt(out, dictionaryValues.size());
+            for (String value : dictionaryValues) {
+                WritableUtils.writeString(out, value);
+            }
+            for (int r = 0; r < numRows; r++) {
+                if (column[r] != null) {
+                    WritableUtils.writeVInt(out, ids[r]);
+                }
+            }
+            dictionary.clear();
+            dictionaryValues.clear();
+        }
+
+        private void writeNumber(byte type, Number value) throws IOException {
+            switch (type) {
+                case DataType.INTEGER: WritableUtils.writeVInt(out, value.intValue()); break;
+                case DataType.LONG:    WritableUtils.writeVLong(out, value.longValue()); break;
+                case DataType.FLOAT:   out.writeFloat(value.floatValue()); break;
+                default:               out.writeDouble(value.doubleValue()); break;
+            }
+        }
+    }
+}
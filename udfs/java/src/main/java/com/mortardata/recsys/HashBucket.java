@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import java.io.IOException;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+public class HashBucket extends EvalFunc<Integer> {
+    private int numBuckets;
+
+    /**
+     * Deterministically assigns a value to one of a fixed number of buckets based on its hash code.
+     * Useful for spreading keys (e.g. users) over a fixed number of groups.
+     *
+     * Input Schema:  (value) or (value, num_buckets: int)
+     * Output Schema: bucket: int      In the range [0, numBuckets), or null if the value is null.
+     *
+     * If num_buckets is given and not null, it overrides numBuckets for that value, so each
+     * key can be split into its own number of buckets.
+     *
+     * @param numBuckets: The number of buckets to assign values to.
+     */
+    public HashBucket(String numBuckets) {
+        this.numBuckets = Integer.parseInt(numBuckets);
+        if (this.numBuckets < 1) {
+            throw new IllegalArgumentException("numBuckets must be positive: " + numBuckets);
+        }
+    }
+
+    public Schema outputSchema(Schema input) {
+        return new Schema(new Schema.FieldSchema("bucket", DataType.INTEGER));
+    }
+
+    public Integer exec(Tuple input) throws IOException {
+        Object value = input.get(0);
+        if (value == null) {
+            return null;
+        }
+        int n = numBuckets;
+        if (input.size() > 1 && input.get(1) != null) {
+            n = ((Number) input.get(1)).intValue();
+            if (n < 1) {
+                throw new IOException("num_buckets must be positive: " + n);
+            }
+        }
+        return (value.hashCode() & Integer.MAX_VALUE) % n;
+    }
+}
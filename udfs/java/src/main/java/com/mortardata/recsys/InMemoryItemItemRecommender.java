@@ -0,0 +1,527 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongDoubleIterator;
+import gnu.trove.map.hash.TLongDoubleHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class InMemoryItemItemRecommender {
+    private static final int CHUNK_SIZE = 64;
+
+    private final float logisticParam;
+    private final float minLinkWeight;
+    private final int maxLinksPerUser;
+    private final float prior;
+    private final int initialNhoodSize;
+    private final int numRecs;
+    private final int numThreads;
+
+    private final TObjectIntHashMap<String> userIds = new TObjectIntHashMap<String>(
+        Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+    private final TObjectIntHashMap<String> itemIds = new TObjectIntHashMap<String>(
+        Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+    private final ArrayList<String> itemNames = new ArrayList<String>();
+
+    // Raw event weights summed by (user << 32 | item), as SUM does in Pig.
+    private final TLongDoubleHashMap signals = new TLongDoubleHashMap();
+
+    private float[] itemWeights;
+    private Csr userItems;
+    private Csr itemUsers;
+
+    // nhoodItems[a] are the items in the initial neighbourhood of item a.
+    private int[][] nhoodItems;
+    private float[][] nhoodDists;
+    private float[][] nhoodRawWeights;
+
+    // recItems[a][r] is the item ranked r + 1 for item a.
+    private int[][] recItems;
+    private float[][] recWeights;
+    private float[][] recRawWeights;
+
+    /**
+     * A single-process version of recsystem__GetItemItemRecommendations for catalogs that fit in
+     * memory.  It produces the same item-item recommendations as running recsys__BuildItemItemGraph,
+     * recsys__AdjustItemItemGraphWeight and recsys__BuildItemItemRecommendationsFromGraph in Pig,
+     * without the job startup and shuffles.
+     *
+     * The user-item and item-item graphs are held in compressed sparse row (CSR) form with int ids
+     * and primitive weights.  Counting co-occurrences, picking each item's neighbourhood and
+     * searching shortest paths are done independently per item, spread over numThreads threads.
+     *
+     * As in Pig, which of several items tied for the last place in a top-N list are kept is
+     * arbitrary, so ties can be broken differently than a Pig run.
+     *
+     * @param logisticParam: See recsys__BuildItemItemGraph.
+     * @param minLinkWeight: See recsys__BuildItemItemGraph.
+     * @param maxLinksPerUser: See recsys__BuildItemItemGraph.
+     * @param prior: See recsys__AdjustItemItemGraphWeight.
+     * @param initialNhoodSize: See recsys__BuildItemItemRecommendationsFromGraph.
+     * @param numRecs: See recsys__BuildItemItemRecommendationsFromGraph.
+     * @param numThreads: Number of threads to use.
+     */
+    public InMemoryItemItemRecommender(float logisticParam, float minLinkWeight, int maxLinksPerUser,
+                                       float prior, int initialNhoodSize, int numRecs, int numThreads) {
+        this.logisticParam = logisticParam;
+        this.minLinkWeight = minLinkWeight;
+        this.maxLinksPerUser = maxLinksPerUser;
+        this.prior = prior;
+        this.initialNhoodSize = initialNhoodSize;
+        this.numRecs = numRecs;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Add a single user-item event.  Events with a null user or item are ignored.
+     */
+    public void addSignal(String user, String item, float weight) {
+        if (user == null || item == null) {
+            return;
+        }
+
+        int userId = userIds.get(user);
+        if (userId == -1) {
+            userId = userIds.size();
+            userIds.put(user, userId);
+        }
+
+        int itemId = itemIds.get(item);
+        if (itemId == -1) {
+            itemId = itemNames.size();
+            itemIds.put(item, itemId);
+            itemNames.add(item);
+        }
+
+        long key = ((long) userId << 32) | itemId;
+        signals.adjustOrPutValue(key, weight, weight);
+    }
+
+    /**
+     * Load tab separated (user, item, weight) signals, as written by PigStorage.
+     */
+    public void loadSignals(String path) throws IOException {
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(path), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length < 3 || fields[2].length() == 0) {
+                    continue;
+                }
+                addSignal(fields[0].length() == 0 ? null : fields[0],
+                          fields[1].length() == 0 ? null : fields[1],
+                          Float.parseFloat(fields[2]));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Build the item-item recommendations and write them tab separated, in the same format as
+     * storing item_item_recs with PigStorage:
+     *
+     *      (item_A:chararray, item_B:chararray, weight:float, raw_weight:float, rank:int)
+     */
+    public void writeRecommendations(Writer out) throws IOException {
+        recommend();
+        for (int a = 0; a < recItems.length; a++) {
+            for (int r = 0; r < recItems[a].length; r++) {
+                out.write(itemNames.get(a));
+                out.write('\t');
+                out.write(itemNames.get(recItems[a][r]));
+                out.write('\t');
+                out.write(Float.toString(recWeights[a][r]));
+                out.write('\t');
+                if (!Float.isNaN(recRawWeights[a][r])) {
+                    out.write(Float.toString(recRawWeights[a][r]));
+                }
+                out.write('\t');
+                out.write(Integer.toString(r + 1));
+                out.write('\n');
+            }
+        }
+    }
+
+    private void recommend() throws IOException {
+        int numItems = itemNames.size();
+
+        // recsys__BuildItemItemGraph: scale the user-item weights and sum them per item.
+        int numLinks = signals.size();
+        int[] linkUsers = new int[numLinks];
+        int[] linkItems = new int[numLinks];
+        float[] linkWeights = new float[numLinks];
+        double[] itemWeightSums = new double[numItems];
+
+        TLongDoubleIterator it = signals.iterator();
+        for (int i = 0; i < numLinks; i++) {
+            it.advance();
+            linkUsers[i] = (int) (it.key() >>> 32);
+            linkItems[i] = (int) it.key();
+            float weight = (float) it.value();
+            linkWeights[i] = (float) (2.0 / (1.0 + Math.exp(-logisticParam * (double) weight)) - 1.0);
+            itemWeightSums[linkItems[i]] += linkWeights[i];
+        }
+
+        itemWeights = new float[numItems];
+        for (int i = 0; i < numItems; i++) {
+            itemWeights[i] = (float) itemWeightSums[i];
+        }
+
+        // Drop items below the minimum weight and keep each user's top links.
+        userItems = Csr.build(userIds.size(), linkUsers, linkItems, linkWeights, new LinkFilter() {
+            public boolean accept(int item, float weight) {
+                return itemWeights[item] >= minLinkWeight;
+            }
+        }).topPerRow(maxLinksPerUser);
+        itemUsers = userItems.transpose(numItems);
+
+        // Build each item's links, adjust their weights (recsys__AdjustItemItemGraphWeight) and
+        // cut them to the initial neighbourhood (recsys__InitShortestPaths).
+        nhoodItems = new int[numItems][];
+        nhoodDists = new float[numItems][];
+        nhoodRawWeights = new float[numItems][];
+
+        List<RowTask> linkTasks = new ArrayList<RowTask>(numThreads);
+        for (int t = 0; t < numThreads; t++) {
+            linkTasks.add(new NeighbourhoodTask(numItems));
+        }
+        runParallel(numItems, linkTasks);
+
+        // recsys__BuildItemItemRecommendationsFromGraph: the shortest paths of length 1 or 2.
+        recItems = new int[numItems][];
+        recWeights = new float[numItems][];
+        recRawWeights = new float[numItems][];
+
+        List<RowTask> pathTasks = new ArrayList<RowTask>(numThreads);
+        for (int t = 0; t < numThreads; t++) {
+            pathTasks.add(new ShortestPathsTask(numItems));
+        }
+        runParallel(numItems, pathTasks);
+    }
+
+    /**
+     * Work on a single row of a graph.  Each thread gets its own RowTask, so a task can keep
+     * scratch space without synchronization.
+     */
+    private interface RowTask {
+        void run(int row);
+    }
+
+    /**
+     * Sums the co-occurrence of an item with every other item, using a dense scratch array
+     * indexed by item and the list of items touched so it can be cleared cheaply.
+     */
+    private class NeighbourhoodTask implements RowTask {
+        private final float[] sums;
+        private final boolean[] touched;
+        private final int[] touchedItems;
+
+        NeighbourhoodTask(int numItems) {
+            sums = new float[numItems];
+            touched = new boolean[numItems];
+            touchedItems = new int[numItems];
+        }
+
+        public void run(int a) {
+            int numTouched = 0;
+            for (int k = itemUsers.offsets[a]; k < itemUsers.offsets[a + 1]; k++) {
+                int user = itemUsers.targets[k];
+                float weightA = itemUsers.weights[k];
+                for (int l = userItems.offsets[user]; l < userItems.offsets[user + 1]; l++) {
+                    int b = userItems.targets[l];
+                    if (b == a) {
+                        continue;
+                    }
+                    if (!touched[b]) {
+                        touched[b] = true;
+                        touchedItems[numTouched++] = b;
+                    }
+                    sums[b] += Math.min(weightA, userItems.weights[l]);
+                }
+            }
+
+            TopKFloatHeap nearest = new TopKFloatHeap(initialNhoodSize);
+            float[] dists = new float[numTouched];
+            for (int i = 0; i < numTouched; i++) {
+                int b = touchedItems[i];
+                float raw = sums[b];
+                if (raw >= minLinkWeight) {
+                    float weight = (float) (raw / ((double) itemWeights[b] + prior));
+                    dists[i] = 1.0f / weight;
+                    nearest.offer(i, -dists[i]);
+                }
+            }
+
+            int[] kept = nearest.drainDescending();
+            int[] items = new int[kept.length];
+            float[] itemDists = new float[kept.length];
+            float[] rawWeights = new float[kept.length];
+            for (int i = 0; i < kept.length; i++) {
+                items[i] = touchedItems[kept[i]];
+                itemDists[i] = dists[kept[i]];
+                rawWeights[i] = sums[items[i]];
+            }
+            nhoodItems[a] = items;
+            nhoodDists[a] = itemDists;
+            nhoodRawWeights[a] = rawWeights;
+
+            for (int i = 0; i < numTouched; i++) {
+                sums[touchedItems[i]] = 0.0f;
+                touched[touchedItems[i]] = false;
+            }
+        }
+    }
+
+    /**
+     * Finds the closest items to an item through at most one intermediate item.
+     */
+    private class ShortestPathsTask implements RowTask {
+        private final float[] best;
+        private final float[] bestRaw;
+        private final boolean[] touched;
+        private final int[] touchedItems;
+        private int numTouched;
+
+        ShortestPathsTask(int numItems) {
+            best = new float[numItems];
+            bestRaw = new float[numItems];
+            touched = new boolean[numItems];
+            touchedItems = new int[numItems];
+        }
+
+        public void run(int a) {
+            numTouched = 0;
+            int[] direct = nhoodItems[a];
+            for (int i = 0; i < direct.length; i++) {
+                int b = direct[i];
+                float dist = nhoodDists[a][i];
+                relax(b, dist, nhoodRawWeights[a][i]);
+
+                int[] indirect = nhoodItems[b];
+                for (int j = 0; j < indirect.length; j++) {
+                    relax(indirect[j], dist + nhoodDists[b][j], Float.NaN);
+                }
+            }
+
+            TopKFloatHeap closest = new TopKFloatHeap(numRecs);
+            for (int i = 0; i < numTouched; i++) {
+                int c = touchedItems[i];
+                if (c != a) {
+                    closest.offer(c, -best[c]);
+                }
+            }
+
+            int[] ranked = closest.drainDescending();
+            float[] weights = new float[ranked.length];
+            float[] rawWeights = new float[ranked.length];
+            for (int r = 0; r < ranked.length; r++) {
+                weights[r] = 1.0f / best[ranked[r]];
+                rawWeights[r] = bestRaw[ranked[r]];
+            }
+            recItems[a] = ranked;
+            recWeights[a] = weights;
+            recRawWeights[a] = rawWeights;
+
+            for (int i = 0; i < numTouched; i++) {
+                touched[touchedItems[i]] = false;
+            }
+        }
+
+        // Direct links are relaxed before the indirect paths through them, and win ties.
+        // Indirect paths have a NaN raw weight.
+        private void relax(int c, float dist, float raw) {
+            if (!touched[c]) {
+                touched[c] = true;
+                touchedItems[numTouched++] = c;
+                best[c] = dist;
+                bestRaw[c] = raw;
+            } else if (dist < best[c] || (dist == best[c] && Float.isNaN(bestRaw[c]))) {
+                best[c] = dist;
+                bestRaw[c] = raw;
+            }
+        }
+    }
+
+    /**
+     * Run the tasks in parallel, one per thread, over chunks of the rows [0, numRows).
+     */
+    private void runParallel(final int numRows, List<RowTask> tasks) throws IOException {
+        final AtomicInteger nextRow = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+            for (final RowTask task : tasks) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() {
+                        int start;
+                        while ((start = nextRow.getAndAdd(CHUNK_SIZE)) < numRows) {
+                            int end = Math.min(start + CHUNK_SIZE, numRows);
+                            for (int row = start; row < end; row++) {
+                                task.run(row);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while building recommendations");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private interface LinkFilter {
+        boolean accept(int target, float weight);
+    }
+
+    /**
+     * A graph in compressed sparse row form: the links of row r are
+     * targets[offsets[r] .. offsets[r + 1]) with the corresponding weights.
+     */
+    private static class Csr {
+        final int[] offsets;
+        final int[] targets;
+        final float[] weights;
+
+        Csr(int[] offsets, int[] targets, float[] weights) {
+            this.offsets = offsets;
+            this.targets = targets;
+            this.weights = weights;
+        }
+
+        static Csr build(int numRows, int[] rows, int[] targets, float[] weights, LinkFilter filter) {
+            int[] offsets = new int[numRows + 1];
+            for (int i = 0; i < rows.length; i++) {
+                if (filter.accept(targets[i], weights[i])) {
+                    offsets[rows[i] + 1]++;
+                }
+            }
+            for (int r = 0; r < numRows; r++) {
+                offsets[r + 1] += offsets[r];
+            }
+
+            int[] next = new int[numRows];
+            System.arraycopy(offsets, 0, next, 0, numRows);
+            int[] csrTargets = new int[offsets[numRows]];
+            float[] csrWeights = new float[offsets[numRows]];
+            for (int i = 0; i < rows.length; i++) {
+                if (filter.accept(targets[i], weights[i])) {
+                    int k = next[rows[i]]++;
+                    csrTargets[k] = targets[i];
+                    csrWeights[k] = weights[i];
+                }
+            }
+            return new Csr(offsets, csrTargets, csrWeights);
+        }
+
+        int numRows() {
+            return offsets.length - 1;
+        }
+
+        /**
+         * Keep only the k highest weighted links of each row, like TOP(k, ...) in Pig.
+         */
+        Csr topPerRow(int k) {
+            int numRows = numRows();
+            int[] newOffsets = new int[numRows + 1];
+            for (int r = 0; r < numRows; r++) {
+                newOffsets[r + 1] = newOffsets[r] + Math.min(k, offsets[r + 1] - offsets[r]);
+            }
+
+            int[] newTargets = new int[newOffsets[numRows]];
+            float[] newWeights = new float[newOffsets[numRows]];
+            TopKFloatHeap top = new TopKFloatHeap(k);
+            for (int r = 0; r < numRows; r++) {
+                for (int i = offsets[r]; i < offsets[r + 1]; i++) {
+                    top.offer(i, weights[i]);
+                }
+                int[] kept = top.drainDescending();
+                for (int j = 0; j < kept.length; j++) {
+                    newTargets[newOffsets[r] + j] = targets[kept[j]];
+                    newWeights[newOffsets[r] + j] = weights[kept[j]];
+                }
+            }
+            return new Csr(newOffsets, newTargets, newWeights);
+        }
+
+        Csr transpose(int numCols) {
+            int numRows = numRows();
+            int[] rows = new int[targets.length];
+            for (int r = 0; r < numRows; r++) {
+                for (int i = offsets[r]; i < offsets[r + 1]; i++) {
+                    rows[i] = r;
+                }
+            }
+            return build(numCols, targets, rows, weights, new LinkFilter() {
+                public boolean accept(int target, float weight) {
+                    return true;
+                }
+            });
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 7) {
+            System.err.println("Usage: InMemoryItemItemRecommender logistic_param min_link_weight "
+                + "max_links_per_user bayesian_prior num_recs output_path input_path...");
+            System.exit(1);
+        }
+
+        InMemoryItemItemRecommender recommender = new InMemoryItemItemRecommender(
+            Float.parseFloat(args[0]), Float.parseFloat(args[1]), Integer.parseInt(args[2]),
+            Float.parseFloat(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[4]),
+            Runtime.getRuntime().availableProcessors());
+
+        for (int i = 6; i < args.length; i++) {
+            recommender.loadSignals(args[i]);
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[5]), "UTF-8"));
+        try {
+            recommender.writeRecommendations(out);
+        } finally {
+            out.close();
+        }
+    }
+}
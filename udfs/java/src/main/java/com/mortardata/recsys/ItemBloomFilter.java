@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.pig.Algebraic;
+import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+public class ItemBloomFilter extends EvalFunc<DataByteArray> implements Algebraic {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+
+    static final int DEFAULT_NUM_BITS = 1 << 23;
+    static final int DEFAULT_NUM_HASHES = 5;
+
+    private int numBits;
+    private int numHashes;
+
+    /**
+     * Takes a bag of items and returns a Bloom filter of them: a set of items that may also
+     * contain a few items that were not added, but never misses one that was.  With the default
+     * 2^23 bits (1MB) and 5 hashes about 2% of other items are wrongly included for a million
+     * items, and far fewer for smaller sets.  See mayContain.
+     *
+     * This UDF is combinable: map-side the items are added to filters, which are combined in the
+     * combiner and reducer, so only one filter per map task is shuffled.
+     *
+     * Input Schema:  { (item: chararray) }
+     * Output Schema: filter: bytearray
+     *
+     * @param numBits: Size of the filter in bits.  Default 2^23.
+     * @param numHashes: Number of bits set per item.  Default 5.
+     */
+    public ItemBloomFilter() {
+        this(Integer.toString(DEFAULT_NUM_BITS), Integer.toString(DEFAULT_NUM_HASHES));
+    }
+
+    public ItemBloomFilter(String numBits, String numHashes) {
+        this.numBits = Integer.parseInt(numBits);
+        this.numHashes = Integer.parseInt(numHashes);
+        if (this.numBits < 1 || this.numHashes < 1) {
+            throw new IllegalArgumentException(
+                "numBits and numHashes must be positive: " + numBits + ", " + numHashes);
+        }
+    }
+
+    public Schema outputSchema(Schema input) {
+        return new Schema(new Schema.FieldSchema("filter", DataType.BYTEARRAY));
+    }
+
+    public DataByteArray exec(Tuple input) throws IOException {
+        long[] bits = newBits(numBits);
+        for (Tuple t : (DataBag) input.get(0)) {
+            addItem(bits, numBits, numHashes, t.get(0));
+        }
+        return serialize(bits, numBits, numHashes);
+    }
+
+    public String getInitial() {
+        return Initial.class.getName();
+    }
+
+    public String getIntermed() {
+        return Intermed.class.getName();
+    }
+
+    public String getFinal() {
+        return Final.class.getName();
+    }
+
+    /**
+     * Pig calls Initial once per item, so a bag of one item is passed on as the item
+     * instead of as a whole filter.
+     *
+     * Input Schema:  ( { (item: chararray) } )
+     * Output Schema: ( item: chararray ) or ( filter: bytearray )
+     */
+    public static class Initial extends EvalFunc<Tuple> {
+        private int numBits;
+        private int numHashes;
+
+        public Initial() {
+            this(Integer.toString(DEFAULT_NUM_BITS), Integer.toString(DEFAULT_NUM_HASHES));
+        }
+
+        public Initial(String numBits, String numHashes) {
+            this.numBits = Integer.parseInt(numBits);
+            this.numHashes = Integer.parseInt(numHashes);
+        }
+
+        public Tuple exec(Tuple input) throws IOException {
+            DataBag items = (DataBag) input.get(0);
+            if (items.size() == 1) {
+                return tf.newTuple(items.iterator().next().get(0));
+            }
+            long[] bits = newBits(numBits);
+            for (Tuple t : items) {
+                addItem(bits, numBits, numHashes, t.get(0));
+            }
+            return tf.newTuple(serialize(bits, numBits, numHashes));
+        }
+    }
+
+    /**
+     * Input Schema:  ( { ( item: chararray ) or ( filter: bytearray ) } )
+     * Output Schema: ( filter: bytearray )
+     */
+    public static class Intermed extends EvalFunc<Tuple> {
+        private int numBits;
+        private int numHashes;
+
+        public Intermed() {
+            this(Integer.toString(DEFAULT_NUM_BITS), Integer.toString(DEFAULT_NUM_HASHES));
+        }
+
+        public Intermed(String numBits, String numHashes) {
+            this.numBits = Integer.parseInt(numBits);
+            this.numHashes = Integer.parseInt(numHashes);
+        }
+
+        public Tuple exec(Tuple input) throws IOException {
+            long[] bits = combinePartials((DataBag) input.get(0), numBits, numHashes);
+            return tf.newTuple(serialize(bits, numBits, numHashes));
+        }
+    }
+
+    /**
+     * Input Schema:  ( { ( item: chararray ) or ( filter: bytearray ) } )
+     * Output Schema: filter: bytearray
+     */
+    public static class Final extends EvalFunc<DataByteArray> {
+        private int numBits;
+        private int numHashes;
+
+        public Final() {
+            this(Integer.toString(DEFAULT_NUM_BITS), Integer.toString(DEFAULT_NUM_HASHES));
+        }
+
+        public Final(String numBits, String numHashes) {
+            this.numBits = Integer.parseInt(numBits);
+            this.numHashes = Integer.parseInt(numHashes);
+        }
+
+        public DataByteArray exec(Tuple input) throws IOException {
+            long[] bits = combinePartials((DataBag) input.get(0), numBits, numHashes);
+            return serialize(bits, numBits, numHashes);
+        }
+    }
+
+    /**
+     * @return { numBits, numHashes } followed by the bits of the filter.
+     */
+    static long[] deserialize(DataByteArray filter) {
+        ByteBuffer buffer = ByteBuffer.wrap(filter.get());
+        long[] filterLongs = new long[buffer.remaining() / 8];
+        buffer.asLongBuffer().get(filterLongs);
+        return filterLongs;
+    }
+
+    /**
+     * Whether an item may have been added to a deserialized filter.  Always true if it was.
+     */
+    static boolean mayContain(long[] filter, Object item) {
+        if (item == null) {
+            return false;
+        }
+        int numBits = (int) filter[0];
+        int numHashes = (int) filter[1];
+        long h = ItemMinHashBands.mix(ItemMinHashBands.hash(item.toString()));
+        for (int k = 0; k < numHashes; k++) {
+            int bit = bit(h, k, numBits);
+            if ((filter[2 + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long[] combinePartials(DataBag partials, int numBits, int numHashes) throws ExecException {
+        long[] bits = newBits(numBits);
+        for (Tuple partial : partials) {
+            Object value = partial.get(0);
+            if (value instanceof DataByteArray) {
+                ByteBuffer buffer = ByteBuffer.wrap(((DataByteArray) value).get());
+                buffer.position(16);
+                for (int i = 0; i < bits.length; i++) {
+                    bits[i] |= buffer.getLong();
+                }
+            } else {
+                addItem(bits, numBits, numHashes, value);
+            }
+        }
+        return bits;
+    }
+
+    private static void addItem(long[] bits, int numBits, int numHashes, Object item) {
+        if (item == null) {
+            return;
+        }
+        long h = ItemMinHashBands.mix(ItemMinHashBands.hash(item.toString()));
+        for (int k = 0; k < numHashes; k++) {
+            int bit = bit(h, k, numBits);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * The k-th bit of an item, by double hashing the two halves of its 64-bit hash.
+     */
+    private static int bit(long h, int k, int numBits) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        return ((h1 + k * h2) & Integer.MAX_VALUE) % numBits;
+    }
+
+    private static long[] newBits(int numBits) {
+        return new long[(numBits + 63) >>> 6];
+    }
+
+    private static DataByteArray serialize(long[] bits, int numBits, int numHashes) {
+        ByteBuffer buffer = ByteBuffer.allocate(16 + 8 * bits.length);
+        buffer.putLong(numBits);
+        buffer.putLong(numHashes);
+        buffer.asLongBuffer().put(bits);
+        return new DataByteArray(buffer.array());
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DefaultAbstractBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.tools.pigstats.PigStatusReporter;
+
+public class ItemItemLinkBag extends DefaultAbstractBag {
+    private static final long serialVersionUID = 1L;
+    private static final TupleFactory tf = TupleFactory.getInstance();
+
+    private Object[] items;
+    private float[] weights;
+    private boolean[] sources;
+    private boolean[] dests;
+
+    // Set by recordCallWhenIterated until the call has been recorded.
+    private RecsysCounters callCounters;
+    private long callStartNanos;
+
+    /**
+     * A read-only bag of the weighted item-item links formed by a single user's items.
+     *
+     * Only the user's items and their weights are held in memory; the O(n^2) link tuples are
+     * generated lazily as the bag is iterated, so the links never have to be materialized
+     * or spilled.  For every pair of items (A, B) the bag yields (A, B, weight) immediately
+     * followed by (B, A, weight), sharing a single weight computed as MIN(W_A, W_B).
+     *
+     * Tuple Schema: (item_A: chararray, item_B: chararray, weight: float)
+     *
+     * The items are output as they are given, so they may also be ints.
+     *
+     * @param items: The items the user interacted with.
+     * @param weights: weights[i] is the user's weight for items[i].
+     */
+    public ItemItemLinkBag(Object[] items, float[] weights) {
+        this(items, weights, null, null);
+    }
+
+    /**
+     * As above, but only yields the links (A, B) where A is a source item or B is a
+     * destination item.
+     *
+     * @param sources: sources[i] is whether items[i] is a source item.
+     * @param dests: dests[i] is whether items[i] is a destination item.
+     */
+    public ItemItemLinkBag(Object[] items, float[] weights, boolean[] sources, boolean[] dests) {
+        this.items = items;
+        this.weights = weights;
+        this.sources = sources;
+        this.dests = dests;
+    }
+
+    /**
+     * Record the UDF call that returned this bag, which started at startNanos, once the links have
+     * all been iterated, so that the call time includes generating them.  The time also includes
+     * whatever Pig does with each link as it is iterated, e.g. writing it to the map output.  The
+     * call is not recorded if the bag is never fully iterated.
+     */
+    public void recordCallWhenIterated(RecsysCounters counters, long startNanos) {
+        this.callCounters = counters;
+        this.callStartNanos = startNanos;
+    }
+
+    public long size() {
+        long n = items.length;
+        if (sources == null) {
+            return n * (n - 1);
+        }
+
+        // Drop the links from a non-source item to a different non-destination item.
+        long notSources = 0;
+        long notDests = 0;
+        long neither = 0;
+        for (int i = 0; i < items.length; i++) {
+            if (!sources[i]) {
+                notSources++;
+            }
+            if (!dests[i]) {
+                notDests++;
+            }
+            if (!sources[i] && !dests[i]) {
+                neither++;
+            }
+        }
+        return n * (n - 1) - (notSources * notDests - neither);
+    }
+
+    public boolean isSorted() {
+        return false;
+    }
+
+    public boolean isDistinct() {
+        return false;
+    }
+
+    public Iterator<Tuple> iterator() {
+        return new LinkIterator();
+    }
+
+    public void add(Tuple t) {
+        throw new UnsupportedOperationException("ItemItemLinkBag is read-only");
+    }
+
+    public void addAll(DataBag b) {
+        throw new UnsupportedOperationException("ItemItemLinkBag is read-only");
+    }
+
+    public void clear() {
+        items = new Object[0];
+        weights = new float[0];
+        sources = null;
+        dests = null;
+    }
+
+    /**
+     * The links are regenerated from the input on every iteration, so there is never
+     * anything to spill.
+     */
+    public long spill() {
+        return 0;
+    }
+
+    public long getMemorySize() {
+        // object header + array headers + one reference, one float and two flags per item
+        return 16 + 64 + 14L * items.length;
+    }
+
+    private class LinkIterator implements Iterator<Tuple> {
+        private final PigStatusReporter reporter = PigStatusReporter.getInstance();
+
+        private int i = 0;
+        private int j = 1;
+        private boolean reversed = false;
+        private Float weight;
+
+        public boolean hasNext() {
+            while (j < items.length && !isKept()) {
+                step();
+            }
+            if (j < items.length) {
+                return true;
+            }
+
+            if (callCounters != null) {
+                callCounters.recordCall(callStartNanos);
+                callCounters = null;
+            }
+            return false;
+        }
+
+        public Tuple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            try {
+                // Both directions of a pair share one weight.
+                if (weight == null) {
+                    weight = Math.min(weights[i], weights[j]);
+                }
+
+                Tuple t = tf.newTuple(3);
+                if (!reversed) {
+                    t.set(0, items[i]);
+                    t.set(1, items[j]);
+                } else {
+                    t.set(0, items[j]);
+                    t.set(1, items[i]);
+                }
+                t.set(2, weight);
+                step();
+                return t;
+            } catch (ExecException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("ItemItemLinkBag is read-only");
+        }
+
+        private boolean isKept() {
+            if (sources == null) {
+                return true;
+            }
+            int a = reversed ? j : i;
+            int b = reversed ? i : j;
+            return sources[a] || dests[b];
+        }
+
+        private void step() {
+            if (!reversed) {
+                reversed = true;
+            } else {
+                reversed = false;
+                advance();
+            }
+        }
+
+        private void advance() {
+            weight = null;
+            j++;
+            if (j == items.length) {
+                i++;
+                j = i + 1;
+
+                if (reporter != null) {
+                    reporter.progress();
+                }
+            }
+        }
+    }
+}
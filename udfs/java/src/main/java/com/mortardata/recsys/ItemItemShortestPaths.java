@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+
+import com.google.common.collect.Lists;
+
+public class ItemItemShortestPaths extends EvalFunc<DataBag> {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+    private static final BagFactory bf = BagFactory.getInstance();
+
+    private int numRecs;
+
+    /**
+     * For a single item_A, takes the direct links of item_A together with the direct links of each
+     * of its neighbours, and returns the top numRecs items by shortest path distance from item_A
+     * through at most one intermediate item.
+     *
+     * The best path to each destination item is found in a single pass over the input, and the
+     * closest destinations are selected with a bounded heap instead of fully sorting them.
+     * item_A itself is never returned.  When a direct link and an indirect path have the same
+     * distance the direct link is used.
+     *
+     * Input Schema:
+     *  { (item_A: chararray, item_B: chararray, dist: float or double, raw_weight: float or double,
+     *     nhood: { (item_B: chararray, dist: float or double) }) }
+     *
+     *  nhood: The direct links of item_B, or null if it has none.
+     *
+     * Output Schema: { (item_B: chararray, dist: float, raw_weight: float, rank: int) }
+     *
+     *  raw_weight: The raw_weight of the direct link from item_A, or null if the path is indirect.
+     *
+     * Items may be chararrays or ints; the output item_B has the same type as the input item_B.
+     *
+     * @param numRecs: Number of destination items to return.
+     */
+    public ItemItemShortestPaths(String numRecs) {
+        this.numRecs = Integer.parseInt(numRecs);
+    }
+
+    public Schema outputSchema(Schema input) {
+        try {
+            ArrayList<FieldSchema> tupleFields = new ArrayList<FieldSchema>(4);
+            tupleFields.add(new Schema.FieldSchema("item_B", RecsysSchemas.bagFieldType(input, 0, 1)));
+            tupleFields.add(new Schema.FieldSchema("dist", DataType.FLOAT));
+            tupleFields.add(new Schema.FieldSchema("raw_weight", DataType.FLOAT));
+            tupleFields.add(new Schema.FieldSchema("rank", DataType.INTEGER));
+
+            return new Schema(
+                new Schema.FieldSchema("item_recs",
+                    new Schema(
+                        new Schema.FieldSchema(null,
+                            new Schema(tupleFields),
+                        DataType.TUPLE)),
+                DataType.BAG)
+            );
+        } catch (FrontendException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public DataBag exec(Tuple input) throws IOException {
+        DataBag inputBag = (DataBag) input.get(0);
+
+        TObjectIntHashMap<Object> index = new TObjectIntHashMap<Object>(
+            Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+        Object[] items = new Object[16];
+        float[] dists = new float[16];
+        Float[] rawWeights = new Float[16];
+        int numItems = 0;
+
+        Object source = null;
+        for (Tuple t : inputBag) {
+            source = t.get(0);
+            float dist = ((Number) t.get(2)).floatValue();
+            DataBag nhood = (DataBag) t.get(4);
+
+            int numPaths = 1 + (nhood == null ? 0 : (int) nhood.size());
+            if (numItems + numPaths > items.length) {
+                int capacity = Math.max(items.length * 2, numItems + numPaths);
+                Object[] grownItems = new Object[capacity];
+                float[] grownDists = new float[capacity];
+                Float[] grownRawWeights = new Float[capacity];
+                System.arraycopy(items, 0, grownItems, 0, numItems);
+                System.arraycopy(dists, 0, grownDists, 0, numItems);
+                System.arraycopy(rawWeights, 0, grownRawWeights, 0, numItems);
+                items = grownItems;
+                dists = grownDists;
+                rawWeights = grownRawWeights;
+            }
+
+            // The direct link item_A -> item_B
+            Object item = t.get(1);
+            Number rawWeightValue = (Number) t.get(3);
+            Float rawWeight = rawWeightValue == null ? null : rawWeightValue.floatValue();
+            int i = index.get(item);
+            if (i == -1) {
+                index.put(item, numItems);
+                items[numItems] = item;
+                dists[numItems] = dist;
+                rawWeights[numItems] = rawWeight;
+                numItems++;
+            } else if (dist < dists[i] || (dist == dists[i] && rawWeights[i] == null)) {
+                dists[i] = dist;
+                rawWeights[i] = rawWeight;
+            }
+
+            // The indirect paths item_A -> item_B -> item_C
+            if (nhood != null) {
+                for (Tuple n : nhood) {
+                    Object next = n.get(0);
+                    float nextDist = dist + ((Number) n.get(1)).floatValue();
+                    int j = index.get(next);
+                    if (j == -1) {
+                        index.put(next, numItems);
+                        items[numItems] = next;
+                        dists[numItems] = nextDist;
+                        rawWeights[numItems] = null;
+                        numItems++;
+                    } else if (nextDist < dists[j]) {
+                        dists[j] = nextDist;
+                        rawWeights[j] = null;
+                    }
+                }
+            }
+        }
+
+        TopKFloatHeap closest = new TopKFloatHeap(numRecs);
+        for (int i = 0; i < numItems; i++) {
+            if (!items[i].equals(source)) {
+                closest.offer(i, -dists[i]);
+            }
+        }
+
+        DataBag outputBag = bf.newDefaultBag();
+        int[] ranked = closest.drainDescending();
+        for (int r = 0; r < ranked.length; r++) {
+            int i = ranked[r];
+            outputBag.add(tf.newTupleNoCopy(
+                Lists.newArrayList(items[i], dists[i], rawWeights[i], r + 1)
+            ));
+        }
+
+        return outputBag;
+    }
+}
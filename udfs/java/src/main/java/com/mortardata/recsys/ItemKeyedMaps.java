@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TIntFloatIterator;
+import gnu.trove.iterator.TLongFloatIterator;
+import gnu.trove.iterator.TObjectFloatIterator;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TLongFloatHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.TupleFactory;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Hash maps keyed by item ids, for UDFs that work on either chararray ids or ids dictionary
+ * encoded by recsys__EncodeUserItemSignals.  Int and long ids are kept in primitive-keyed Trove
+ * maps, so they are neither boxed nor hashed as objects in the UDFs' inner loops; any other ids
+ * are kept in Object-keyed maps.  Ids are boxed again only when they are output.
+ */
+public class ItemKeyedMaps {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+
+    /**
+     * Returns the type of the ids to key a map on: the type in the UDF's input schema if it is
+     * known, or else the type of the first id seen, e.g. in the algebraic stages, whose input
+     * schemas Pig does not pass at run time.
+     *
+     * @param schemaType: The id type from the input schema, or DataType.UNKNOWN.
+     * @param firstItem: The first id to be put in the map.
+     */
+    public static byte keyType(byte schemaType, Object firstItem) {
+        if (schemaType != DataType.UNKNOWN && schemaType != DataType.BYTEARRAY) {
+            return schemaType;
+        }
+        return DataType.findType(firstItem);
+    }
+
+    /**
+     * Sums of float weights by item.
+     */
+    public static abstract class FloatSums {
+        public static FloatSums create(byte keyType) {
+            switch (keyType) {
+                case DataType.INTEGER: return new IntFloatSums();
+                case DataType.LONG:    return new LongFloatSums();
+                default:               return new ObjectFloatSums();
+            }
+        }
+
+        public abstract void add(Object item, float weight);
+
+        public abstract int size();
+
+        /**
+         * Adds an (item, weight) tuple to the bag for each item whose sum is at least minWeight.
+         */
+        public abstract void addTo(DataBag bag, float minWeight);
+    }
+
+    /**
+     * Int values by item, with -1 for an item that has none.
+     */
+    public static abstract class Index {
+        public static Index create(byte keyType) {
+            switch (keyType) {
+                case DataType.INTEGER: return new IntIndex();
+                case DataType.LONG:    return new LongIndex();
+                default:               return new ObjectIndex();
+            }
+        }
+
+        public abstract int get(Object item);
+
+        public abstract void put(Object item, int value);
+
+        public boolean contains(Object item) {
+            return get(item) != -1;
+        }
+    }
+
+    private static class IntFloatSums extends FloatSums {
+        private final TIntFloatHashMap sums = new TIntFloatHashMap();
+
+        public void add(Object item, float weight) {
+            sums.adjustOrPutValue((Integer) item, weight, weight);
+        }
+
+        public int size() {
+            return sums.size();
+        }
+
+        public void addTo(DataBag bag, float minWeight) {
+            TIntFloatIterator it = sums.iterator();
+            while (it.hasNext()) {
+                it.advance();
+                if (it.value() >= minWeight) {
+                    bag.add(tf.newTupleNoCopy(ImmutableList.of(it.key(), it.value())));
+                }
+            }
+        }
+    }
+
+    private static class LongFloatSums extends FloatSums {
+        private final TLongFloatHashMap sums = new TLongFloatHashMap();
+
+        public void add(Object item, float weight) {
+            sums.adjustOrPutValue((Long) item, weight, weight);
+        }
+
+        public int size() {
+            return sums.size();
+        }
+
+        public void addTo(DataBag bag, float minWeight) {
+            TLongFloatIterator it = sums.iterator();
+            while (it.hasNext()) {
+                it.advance();
+                if (it.value() >= minWeight) {
+                    bag.add(tf.newTupleNoCopy(ImmutableList.of(it.key(), it.value())));
+                }
+            }
+        }
+    }
+
+    private static class ObjectFloatSums extends FloatSums {
+        private final TObjectFloatHashMap<Object> sums = new TObjectFloatHashMap<Object>();
+
+        public void add(Object item, float weight) {
+            sums.adjustOrPutValue(item, weight, weight);
+        }
+
+        public int size() {
+            return sums.size();
+        }
+
+        public void addTo(DataBag bag, float minWeight) {
+            TObjectFloatIterator<Object> it = sums.iterator();
+            while (it.hasNext()) {
+                it.advance();
+                if (it.value() >= minWeight) {
+                    bag.add(tf.newTupleNoCopy(ImmutableList.of(it.key(), it.value())));
+                }
+            }
+        }
+    }
+
+    private static class IntIndex extends Index {
+        private final TIntIntHashMap index = new TIntIntHashMap(
+            Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, 0, -1);
+
+        public int get(Object item) {
+            return index.get((Integer) item);
+        }
+
+        public void put(Object item, int value) {
+            index.put((Integer) item, value);
+        }
+    }
+
+    private static class LongIndex extends Index {
+        private final TLongIntHashMap index = new TLongIntHashMap(
+            Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, 0, -1);
+
+        public int get(Object item) {
+            return index.get((Long) item);
+        }
+
+        public void put(Object item, int value) {
+            index.put((Long) item, value);
+        }
+    }
+
+    private static class ObjectIndex extends Index {
+        private final TObjectIntHashMap<Object> index = new TObjectIntHashMap<Object>(
+            Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+
+        public int get(Object item) {
+            return index.get(item);
+        }
+
+        public void put(Object item, int value) {
+            index.put(item, value);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+import com.google.common.collect.ImmutableList;
+
+public class ItemMinHashBands extends EvalFunc<DataBag> {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+    private static final BagFactory bf = BagFactory.getInstance();
+
+    private int numBands;
+    private int rowsPerBand;
+    private long[] seeds;
+    private long[] mins;
+
+    /**
+     * For a single item, takes the bag of its users and returns the item's locality sensitive
+     * hashing (LSH) band keys.  Items that share a band key are candidates for an item-item link.
+     *
+     * The item's MinHash signature has numBands * rowsPerBand values, each the minimum over the
+     * item's users of a different hash function of the user.  Any one value is equal for two
+     * items with probability equal to the Jaccard similarity s of their sets of users, so two
+     * items share at least one of the band keys, each a hash of rowsPerBand consecutive values,
+     * with probability 1 - (1 - s^rowsPerBand)^numBands.
+     *
+     * Input Schema:  { (user: chararray, item: chararray, weight: float) }
+     * Output Schema: { (band_key: long) }
+     *
+     * @param numBands: Number of band keys per item.  More bands find more pairs.
+     * @param rowsPerBand: Number of signature values hashed into each band key.
+     *                     More rows find fewer pairs, of more similar items.
+     */
+    public ItemMinHashBands(String numBands, String rowsPerBand) {
+        this.numBands = Integer.parseInt(numBands);
+        this.rowsPerBand = Integer.parseInt(rowsPerBand);
+        if (this.numBands < 1 || this.rowsPerBand < 1) {
+            throw new IllegalArgumentException(
+                "numBands and rowsPerBand must be positive: " + numBands + ", " + rowsPerBand);
+        }
+
+        // Fixed seeds, so every task computes the same hash functions.
+        int numHashes = this.numBands * this.rowsPerBand;
+        seeds = new long[numHashes];
+        for (int h = 0; h < numHashes; h++) {
+            seeds[h] = mix(0x9E3779B97F4A7C15L * (h + 1));
+        }
+        mins = new long[numHashes];
+    }
+
+    public Schema outputSchema(Schema input) {
+        try {
+            return new Schema(
+                new Schema.FieldSchema("band_keys",
+                    new Schema(
+                        new Schema.FieldSchema(null,
+                            new Schema(new Schema.FieldSchema("band_key", DataType.LONG)),
+                        DataType.TUPLE)),
+                DataType.BAG)
+            );
+        } catch (FrontendException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public DataBag exec(Tuple input) throws IOException {
+        DataBag users = (DataBag) input.get(0);
+
+        Arrays.fill(mins, Long.MAX_VALUE);
+        for (Tuple t : users) {
+            Object user = t.get(0);
+            if (user == null) {
+                continue;
+            }
+            long userHash = hash(user.toString());
+            for (int h = 0; h < mins.length; h++) {
+                long v = mix(userHash ^ seeds[h]);
+                if (v < mins[h]) {
+                    mins[h] = v;
+                }
+            }
+        }
+
+        ArrayList<Tuple> bandKeys = new ArrayList<Tuple>(numBands);
+        for (int b = 0; b < numBands; b++) {
+            // The band number is part of the key so equal values in different bands don't collide.
+            long key = mix(b + 1);
+            for (int r = 0; r < rowsPerBand; r++) {
+                key = mix(key * 31 + mins[b * rowsPerBand + r]);
+            }
+            bandKeys.add(tf.newTupleNoCopy(ImmutableList.of(key)));
+        }
+        return bf.newDefaultBag(bandKeys);
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a string's chars, since String.hashCode has too few bits for MinHash.
+     */
+    static long hash(String s) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return h;
+    }
+
+    /**
+     * The finalizer of SplitMix64, which spreads every input bit over the whole output.
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import gnu.trove.map.hash.THashMap;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.pig.Expression;
+import org.apache.pig.LoadFunc;
+import org.apache.pig.LoadMetadata;
+import org.apache.pig.LoadPushDown;
+import org.apache.pig.ResourceSchema;
+import org.apache.pig.ResourceStatistics;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigSplit;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.util.UDFContext;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+public class JsonSignalLoader extends LoadFunc implements LoadMetadata, LoadPushDown {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+    private static final String REQUIRED_FIELDS_PROPERTY = "recsys.json.signal.loader.required.fields";
+    private static final int MAX_INTERNED_ITEMS = 100000;
+
+    private final RecsysCounters counters = new RecsysCounters("JsonSignalLoader");
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    private String userField;
+    private String itemField;
+    private Float weight;
+    private String signature;
+
+    // Indexes into (user, item, weight) of the fields Pig asked for, in output order.
+    private int[] requiredFields = { 0, 1, 2 };
+    private boolean parseUser = true;
+    private boolean parseItem = true;
+    private THashMap<String, String> internedItems = new THashMap<String, String>();
+    private RecordReader<?, ?> reader;
+
+    /**
+     * Loads user-item signals from files of JSON objects, one per line, such as event logs.
+     * Only the user and item fields of each object are read, with a streaming parser that skips
+     * the other fields without building them, and every signal of one load statement gets the
+     * same weight.  This replaces loading the whole object with piggybank's JsonLoader and
+     * projecting the signal out of it.
+     *
+     * Only top-level fields are read.  A user or item field that is missing or is not a string,
+     * number or boolean loads as null; recsys__BuildItemItemGraph drops such signals.  Lines that
+     * are not JSON objects are skipped.  Item names are interned, since the same items appear
+     * in many signals.
+     *
+     * Output Schema: (user: chararray, item: chararray, weight: float)
+     *
+     * Pig's projection pushdown is supported, so e.g. a script that only uses the items does not
+     * parse the users.
+     *
+     * @param userField: Name of the field holding the user, e.g. 'user_id'.
+     * @param itemField: Name of the field holding the item, e.g. 'movie_name'.
+     * @param weight: Weight of every signal loaded, e.g. '1.0' for purchases and '0.5' for
+     *                the weaker wishlist signal.
+     */
+    public JsonSignalLoader(String userField, String itemField, String weight) {
+        this.userField = userField;
+        this.itemField = itemField;
+        this.weight = Float.parseFloat(weight);
+    }
+
+    public void setLocation(String location, Job job) throws IOException {
+        FileInputFormat.setInputPaths(job, location);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public InputFormat getInputFormat() throws IOException {
+        return new TextInputFormat();
+    }
+
+    public void setUDFContextSignature(String signature) {
+        this.signature = signature;
+    }
+
+    @SuppressWarnings("rawtypes")
+    public void prepareToRead(RecordReader reader, PigSplit split) throws IOException {
+        this.reader = reader;
+
+        String required = getProperties().getProperty(REQUIRED_FIELDS_PROPERTY);
+        if (required != null) {
+            String[] indexes = required.length() == 0 ? new String[0] : required.split(",");
+            requiredFields = new int[indexes.length];
+            for (int i = 0; i < indexes.length; i++) {
+                requiredFields[i] = Integer.parseInt(indexes[i]);
+            }
+        }
+
+        parseUser = false;
+        parseItem = false;
+        for (int f : requiredFields) {
+            parseUser |= f == 0;
+            parseItem |= f == 1;
+        }
+    }
+
+    public Tuple getNext() throws IOException {
+        try {
+            while (reader.nextKeyValue()) {
+                Text line = (Text) reader.getCurrentValue();
+                String[] signal = parse(line.getBytes(), line.getLength());
+                if (signal == null) {
+                    counters.increment("malformed lines", 1);
+                    continue;
+                }
+
+                Tuple t = tf.newTuple(requiredFields.length);
+                for (int i = 0; i < requiredFields.length; i++) {
+                    switch (requiredFields[i]) {
+                        case 0: t.set(i, signal[0]); break;
+                        case 1: t.set(i, signal[1]); break;
+                        default: t.set(i, weight); break;
+                    }
+                }
+                return t;
+            }
+            return null;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return { user, item }, or null if the line is not a JSON object.
+     */
+    private String[] parse(byte[] bytes, int length) throws IOException {
+        boolean needUser = parseUser;
+        boolean needItem = parseItem;
+        String[] signal = new String[2];
+        JsonParser parser = jsonFactory.createJsonParser(bytes, 0, length);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while ((needUser || needItem) && parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (needUser && name.equals(userField)) {
+                    signal[0] = scalarText(parser, value);
+                    needUser = false;
+                } else if (needItem && name.equals(itemField)) {
+                    signal[1] = intern(scalarText(parser, value));
+                    needItem = false;
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return signal;
+        } catch (JsonParseException e) {
+            return null;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static String scalarText(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        return value == JsonToken.VALUE_NULL ? null : parser.getText();
+    }
+
+    private String intern(String item) {
+        if (item == null) {
+            return null;
+        }
+        String interned = internedItems.get(item);
+        if (interned == null) {
+            if (internedItems.size() >= MAX_INTERNED_ITEMS) {
+                internedItems.clear();
+            }
+            internedItems.put(item, item);
+            interned = item;
+        }
+        return interned;
+    }
+
+    public ResourceSchema getSchema(String location, Job job) throws IOException {
+        Schema schema = new Schema();
+        schema.add(new Schema.FieldSchema("user", DataType.CHARARRAY));
+        schema.add(new Schema.FieldSchema("item", DataType.CHARARRAY));
+        schema.add(new Schema.FieldSchema("weight", DataType.FLOAT));
+        return new ResourceSchema(schema);
+    }
+
+    public ResourceStatistics getStatistics(String location, Job job) throws IOException {
+        return null;
+    }
+
+    public String[] getPartitionKeys(String location, Job job) throws IOException {
+        return null;
+    }
+
+    public void setPartitionFilter(Expression partitionFilter) throws IOException {}
+
+    public List<OperatorSet> getFeatures() {
+        return Arrays.asList(OperatorSet.PROJECTION);
+    }
+
+    public RequiredFieldResponse pushProjection(RequiredFieldList requiredFieldList)
+            throws FrontendException {
+        if (requiredFieldList == null || requiredFieldList.getFields() == null) {
+            return new RequiredFieldResponse(false);
+        }
+
+        StringBuilder required = new StringBuilder();
+        for (RequiredField field : requiredFieldList.getFields()) {
+            if (required.length() > 0) {
+                required.append(',');
+            }
+            required.append(field.getIndex());
+        }
+        getProperties().setProperty(REQUIRED_FIELDS_PROPERTY, required.toString());
+        return new RequiredFieldResponse(true);
+    }
+
+    private Properties getProperties() {
+        return UDFContext.getUDFContext().getUDFProperties(getClass(), new String[] { signature });
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import java.io.IOException;
+
+import org.apache.pig.Algebraic;
+import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+public class LogisticScaledSum extends EvalFunc<Float> implements Algebraic {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+
+    private double logisticParam;
+
+    /**
+     * For a single user-item pair, takes the bag of the weights of its signals and returns their
+     * sum scaled by the logistic function 2 / (1 + e^(-logistic_param * sum)) - 1, so a user with
+     * tons of events for the same item faces diminishing returns.  This is the same as
+     * (float) SUM($1.weight) followed by recsys.py's logistic_scale, without calling into Jython
+     * for each user-item pair.
+     *
+     * When used directly on a group this UDF is combinable: the Initial and Intermed stages
+     * pre-sum the weights map-side and only the Final stage applies the scaling, so the raw
+     * signals are summed before they are shuffled.
+     *
+     * Input Schema:  { (weight: float) }
+     * Output Schema: weight: float     Null if every weight is null.
+     *
+     * @param logisticParam: See params/README.md for details.
+     */
+    public LogisticScaledSum(String logisticParam) {
+        this.logisticParam = Double.parseDouble(logisticParam);
+    }
+
+    public Schema outputSchema(Schema input) {
+        return new Schema(new Schema.FieldSchema("weight", DataType.FLOAT));
+    }
+
+    public Float exec(Tuple input) throws IOException {
+        return scale(sum((DataBag) input.get(0)), logisticParam);
+    }
+
+    public String getInitial() {
+        return Initial.class.getName();
+    }
+
+    public String getIntermed() {
+        return Intermed.class.getName();
+    }
+
+    public String getFinal() {
+        return Final.class.getName();
+    }
+
+    /**
+     * Input Schema:  ( { (weight: float) } )
+     * Output Schema: ( sum: double )
+     */
+    public static class Initial extends EvalFunc<Tuple> {
+        public Initial() {}
+        public Initial(String logisticParam) {}
+
+        public Tuple exec(Tuple input) throws IOException {
+            return tf.newTuple(sum((DataBag) input.get(0)));
+        }
+    }
+
+    /**
+     * Input Schema:  ( { (sum: double) } )
+     * Output Schema: ( sum: double )
+     */
+    public static class Intermed extends EvalFunc<Tuple> {
+        public Intermed() {}
+        public Intermed(String logisticParam) {}
+
+        public Tuple exec(Tuple input) throws IOException {
+            return tf.newTuple(sum((DataBag) input.get(0)));
+        }
+    }
+
+    /**
+     * Input Schema:  ( { (sum: double) } )
+     * Output Schema: weight: float
+     */
+    public static class Final extends EvalFunc<Float> {
+        private double logisticParam;
+
+        // Pig instantiates the stages without arguments to check their return types, and with
+        // the define's arguments to run them.  This one must never scale weights.
+        public Final() {
+            this.logisticParam = Double.NaN;
+        }
+
+        public Final(String logisticParam) {
+            this.logisticParam = Double.parseDouble(logisticParam);
+        }
+
+        public Float exec(Tuple input) throws IOException {
+            if (Double.isNaN(logisticParam)) {
+                throw new IllegalStateException("LogisticScaledSum.Final needs logistic_param");
+            }
+            return scale(sum((DataBag) input.get(0)), logisticParam);
+        }
+    }
+
+    /**
+     * Sum the first field of each tuple, as doubles like Pig's SUM.  Null if every value is null.
+     */
+    private static Double sum(DataBag values) throws ExecException {
+        double sum = 0.0;
+        boolean sawValue = false;
+        for (Tuple t : values) {
+            Number value = (Number) t.get(0);
+            if (value != null) {
+                sum += value.doubleValue();
+                sawValue = true;
+            }
+        }
+        return sawValue ? sum : null;
+    }
+
+    private static Float scale(Double sum, double logisticParam) {
+        if (sum == null) {
+            return null;
+        }
+        // Round the sum to a float first, as the (float) SUM this replaces did.
+        double weight = (float) sum.doubleValue();
+        return (float) (2.0 / (1.0 + Math.exp(-logisticParam * weight)) - 1.0);
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.THashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.set.hash.THashSet;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+public class OnlineUserItemRecommender {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+
+    private final int numRecs;
+    private final boolean diversityAdjust;
+    private final long ttlMillis;
+
+    // Replaced as a whole by setItemItemRecs and never modified, so reads need no locking.
+    private volatile Map<String, ItemRecs> itemItemRecs;
+
+    // Access ordered, so the eldest entry is the least recently used.  Guarded by itself.
+    private final LinkedHashMap<String, CachedRecs> cache;
+
+    /**
+     * Computes a user's recommendations on demand from their current signals and the item-item
+     * recommendations, instead of for every user in batch with recsys__BuildUserItemRecommendations.
+     *
+     * The results are the same as recsys__BuildUserItemRecommendations: each item recommended
+     * for an item the user has a signal for is a candidate, weighted SQRT(user_link * item_link).
+     * Items the user has signals for are dropped, each item is kept once with its best reason,
+     * and the top numRecs are picked as RefineUserItemRecs does, with the same diversity adjustment.
+     *
+     * The item-item recommendations are held in an immutable in-memory table that is swapped as
+     * a whole when a new batch run finishes, so any number of threads can score at once.
+     * The results for recently requested users are kept in an LRU cache.  A cached result is
+     * used only while it is younger than the TTL and was computed from the same signals and the
+     * same item-item table, so a user's recommendations follow their signals immediately.
+     *
+     * @param numRecs: Number of recommendations to return per user.
+     * @param diversityAdjust: See recsys__BuildUserItemRecommendations.
+     * @param cacheSize: Maximum number of users to cache results for.  0 disables the cache.
+     * @param ttlMillis: How long a cached result may be used for.
+     */
+    public OnlineUserItemRecommender(int numRecs, boolean diversityAdjust,
+                                     final int cacheSize, long ttlMillis) {
+        this.numRecs = numRecs;
+        this.diversityAdjust = diversityAdjust;
+        this.ttlMillis = ttlMillis;
+        this.itemItemRecs = Collections.<String, ItemRecs>emptyMap();
+        this.cache = new LinkedHashMap<String, CachedRecs>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, CachedRecs> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Replace the item-item recommendations used for scoring.  Results cached from the previous
+     * table are not used again.
+     */
+    public void setItemItemRecs(Map<String, ItemRecs> itemItemRecs) {
+        this.itemItemRecs = itemItemRecs;
+    }
+
+    /**
+     * Load tab separated (item_A, item_B, weight, raw_weight, rank) item-item recommendations,
+     * as stored from recsys__BuildItemItemRecommendationsFromGraph by PigStorage.
+     *
+     * @param path: A file, or a directory of part files as written by a Pig store.
+     */
+    public static Map<String, ItemRecs> loadItemItemRecs(String path) throws IOException {
+        THashMap<String, List<String[]>> rows = new THashMap<String, List<String[]>>();
+
+        File[] files;
+        File file = new File(path);
+        if (file.isDirectory()) {
+            files = file.listFiles(new FileFilter() {
+                public boolean accept(File f) {
+                    return f.isFile() && !f.getName().startsWith("_") && !f.getName().startsWith(".");
+                }
+            });
+        } else {
+            files = new File[] { file };
+        }
+
+        for (File f : files) {
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(f), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length < 5) {
+                        continue;
+                    }
+                    List<String[]> itemRows = rows.get(fields[0]);
+                    if (itemRows == null) {
+                        itemRows = new ArrayList<String[]>();
+                        rows.put(fields[0], itemRows);
+                    }
+                    itemRows.add(fields);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        THashMap<String, ItemRecs> table = new THashMap<String, ItemRecs>(rows.size());
+        for (Map.Entry<String, List<String[]>> e : rows.entrySet()) {
+            List<String[]> itemRows = e.getValue();
+            Collections.sort(itemRows, new Comparator<String[]>() {
+                public int compare(String[] a, String[] b) {
+                    return Integer.parseInt(a[4]) - Integer.parseInt(b[4]);
+                }
+            });
+
+            int n = itemRows.size();
+            ItemRecs recs = new ItemRecs(new String[n], new float[n], new float[n]);
+            for (int i = 0; i < n; i++) {
+                String[] fields = itemRows.get(i);
+                recs.items[i] = fields[1];
+                recs.weights[i] = Float.parseFloat(fields[2]);
+                // Recommendations reached only through other items have no raw_weight.
+                recs.rawWeights[i] = fields[3].length() == 0 ? Float.NaN : Float.parseFloat(fields[3]);
+            }
+            table.put(e.getKey(), recs);
+        }
+        return table;
+    }
+
+    /**
+     * @param user: The user to recommend for.
+     * @param signals: The user's current signals, with weights as passed to
+     *                 recsys__BuildUserItemRecommendations.
+     * @return At most numRecs recommendations, best first.
+     */
+    public List<Recommendation> recommend(String user, List<Signal> signals) {
+        Map<String, ItemRecs> table = itemItemRecs;
+        long now = System.currentTimeMillis();
+
+        synchronized (cache) {
+            CachedRecs cached = cache.get(user);
+            if (cached != null && cached.table == table
+                && now - cached.computedAt < ttlMillis && cached.signals.equals(signals)) {
+                return cached.recs;
+            }
+        }
+
+        // Computed outside the lock; two requests for the same user may both compute.
+        List<Recommendation> recs = score(user, signals, table);
+        synchronized (cache) {
+            cache.put(user, new CachedRecs(new ArrayList<Signal>(signals), table, now, recs));
+        }
+        return recs;
+    }
+
+    private List<Recommendation> score(String user, List<Signal> signals, Map<String, ItemRecs> table) {
+        try {
+            DataBag picked = scoreTopRecs(user, signals, Collections.<String>emptyList(), table,
+                                          numRecs, diversityAdjust);
+            ArrayList<Recommendation> result = new ArrayList<Recommendation>((int) picked.size());
+            for (Tuple t : picked) {
+                result.add(new Recommendation(
+                    (String) t.get(1), (Float) t.get(2), (String) t.get(3),
+                    (Float) t.get(4), (Float) t.get(5), (Integer) t.get(7)));
+            }
+            Collections.sort(result, new Comparator<Recommendation>() {
+                public int compare(Recommendation a, Recommendation b) {
+                    return a.rank - b.rank;
+                }
+            });
+            return Collections.unmodifiableList(result);
+        } catch (ExecException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Score one user's candidates and pick the top numRecs, as recsys__BuildUserItemRecommendations
+     * does.  Also used by ScoreUserItemRecs.
+     *
+     * @param unscoredItems: Other items the user has seen, which are not recommended but whose
+     *                       signals have no weight to score candidates with.
+     * @return { (user, item, weight, reason, user_link, item_link, diversity_adj_weight, rank) }
+     *         as returned by RefineUserItemRecs.
+     */
+    static DataBag scoreTopRecs(String user, List<Signal> signals, List<String> unscoredItems,
+                                Map<String, ItemRecs> table, int numRecs, boolean diversityAdjust)
+            throws ExecException {
+        THashSet<String> seenBefore = new THashSet<String>();
+        for (Signal signal : signals) {
+            seenBefore.add(signal.item);
+        }
+        seenBefore.addAll(unscoredItems);
+
+        // The same candidates as joining the signals with the item-item recs in Pig,
+        // keeping only the best candidate for each unseen item as RefineUserItemRecs does.
+        TObjectIntHashMap<String> candidateIndex = new TObjectIntHashMap<String>(
+            Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+        ArrayList<Tuple> candidates = new ArrayList<Tuple>();
+        float[] weights = new float[16];
+
+        for (Signal signal : signals) {
+            ItemRecs recs = table.get(signal.item);
+            if (recs == null) {
+                continue;
+            }
+
+            float userLink = signal.weight > 0 ? signal.weight : 0;
+            for (int r = 0; r < recs.items.length; r++) {
+                String item = recs.items[r];
+                if (seenBefore.contains(item)) {
+                    continue;
+                }
+
+                float weight = (float) Math.sqrt(userLink * recs.weights[r]);
+                int i = candidateIndex.get(item);
+                if (i == -1) {
+                    i = candidates.size();
+                    candidateIndex.put(item, i);
+                    candidates.add(candidate(user, item, weight, signal, recs.rawWeights[r]));
+                    if (i == weights.length) {
+                        float[] grown = new float[i * 2];
+                        System.arraycopy(weights, 0, grown, 0, i);
+                        weights = grown;
+                    }
+                    weights[i] = weight;
+                } else if (weight > weights[i]) {
+                    candidates.set(i, candidate(user, item, weight, signal, recs.rawWeights[r]));
+                    weights[i] = weight;
+                }
+            }
+        }
+
+        return UserItemRecSelection.selectTopRecs(candidates, weights, numRecs, diversityAdjust);
+    }
+
+    private static Tuple candidate(String user, String item, float weight,
+                                   Signal signal, float itemLink) throws ExecException {
+        Tuple t = tf.newTuple(6);
+        t.set(0, user);
+        t.set(1, item);
+        t.set(2, weight);
+        t.set(3, signal.item);
+        t.set(4, signal.weight);
+        t.set(5, Float.isNaN(itemLink) ? null : itemLink);
+        return t;
+    }
+
+    /**
+     * The item-item recommendations for one item_A, in rank order.
+     */
+    public static class ItemRecs {
+        final String[] items;
+        final float[] weights;
+        final float[] rawWeights;
+
+        public ItemRecs(String[] items, float[] weights, float[] rawWeights) {
+            this.items = items;
+            this.weights = weights;
+            this.rawWeights = rawWeights;
+        }
+    }
+
+    /**
+     * A user-item signal, with the weight as passed to recsys__BuildUserItemRecommendations.
+     */
+    public static class Signal {
+        public final String item;
+        public final float weight;
+
+        public Signal(String item, float weight) {
+            this.item = item;
+            this.weight = weight;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Signal)) {
+                return false;
+            }
+            Signal other = (Signal) o;
+            return item.equals(other.item) && Float.floatToIntBits(weight) == Float.floatToIntBits(other.weight);
+        }
+
+        public int hashCode() {
+            return 31 * item.hashCode() + Float.floatToIntBits(weight);
+        }
+    }
+
+    /**
+     * A row of recsys__BuildUserItemRecommendations' output, without the user.
+     */
+    public static class Recommendation {
+        public final String item;
+        public final float weight;
+        public final String reasonItem;
+        public final float userReasonItemWeight;
+        public final Float itemReasonItemWeight;
+        public final int rank;
+
+        Recommendation(String item, float weight, String reasonItem,
+                       float userReasonItemWeight, Float itemReasonItemWeight, int rank) {
+            this.item = item;
+            this.weight = weight;
+            this.reasonItem = reasonItem;
+            this.userReasonItemWeight = userReasonItemWeight;
+            this.itemReasonItemWeight = itemReasonItemWeight;
+            this.rank = rank;
+        }
+    }
+
+    private static class CachedRecs {
+        final List<Signal> signals;
+        final Map<String, ItemRecs> table;
+        final long computedAt;
+        final List<Recommendation> recs;
+
+        CachedRecs(List<Signal> signals, Map<String, ItemRecs> table, long computedAt,
+                   List<Recommendation> recs) {
+            this.signals = signals;
+            this.table = table;
+            this.computedAt = computedAt;
+            this.recs = recs;
+        }
+    }
+
+    /**
+     * Scores every user in a file of signals, for comparing with a batch run.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 5) {
+            System.err.println("Usage: OnlineUserItemRecommender num_recs diversity_adjust "
+                + "item_item_recs_path user_item_signals_path output_path");
+            System.exit(1);
+        }
+
+        OnlineUserItemRecommender recommender = new OnlineUserItemRecommender(
+            Integer.parseInt(args[0]), Boolean.parseBoolean(args[1]), 0, 0);
+        recommender.setItemItemRecs(loadItemItemRecs(args[2]));
+
+        LinkedHashMap<String, List<Signal>> signals = new LinkedHashMap<String, List<Signal>>();
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(args[3]), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length < 3 || fields[0].length() == 0 || fields[1].length() == 0) {
+                    continue;
+                }
+                List<Signal> userSignals = signals.get(fields[0]);
+                if (userSignals == null) {
+                    userSignals = new ArrayList<Signal>();
+                    signals.put(fields[0], userSignals);
+                }
+                userSignals.add(new Signal(fields[1], Float.parseFloat(fields[2])));
+            }
+        } finally {
+            reader.close();
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[4]), "UTF-8"));
+        try {
+            for (Map.Entry<String, List<Signal>> e : signals.entrySet()) {
+                for (Recommendation rec : recommender.recommend(e.getKey(), e.getValue())) {
+                    out.write(e.getKey() + "\t" + rec.item + "\t" + rec.weight + "\t" + rec.reasonItem
+                              + "\t" + rec.userReasonItemWeight
+                              + "\t" + (rec.itemReasonItemWeight == null ? "" : rec.itemReasonItemWeight)
+                              + "\t" + rec.rank + "\n");
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
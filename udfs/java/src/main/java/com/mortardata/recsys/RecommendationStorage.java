@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.pig.ResourceSchema;
+import org.apache.pig.ResourceSchema.ResourceFieldSchema;
+import org.apache.pig.StoreFunc;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+
+public class RecommendationStorage extends StoreFunc {
+    private RecordWriter<NullWritable, Tuple> writer;
+
+    /**
+     * Stores recommendations in the binary format read by RecommendationStore, so they can be
+     * served straight from the output files with memory-mapped lookups.
+     *
+     * Each output file has a block of fixed-width (target, weight) entries per key, the names of
+     * the targets stored once each, and an index of block offsets sorted by key.  Keys must arrive
+     * sorted, and the recommendations of a key in the order they should be served, so store the
+     * output of an order by (see recsys__StoreRecommendationsBinary); a key out of order fails
+     * the task.  Tuples with a null key or target are skipped.
+     *
+     * Input Schema: (key: chararray, target: chararray, weight: float, ...)
+     *
+     * For item-item recommendations the key is item_A and the target item_B; for user-item
+     * recommendations the key is the user and the target the item.  Any further fields,
+     * such as rank, are not stored.
+     *
+     * Each task keeps the names of its distinct targets and one offset per key in memory.
+     */
+    public RecommendationStorage() {
+    }
+
+    @SuppressWarnings("rawtypes")
+    public OutputFormat getOutputFormat() {
+        return new RecommendationOutputFormat();
+    }
+
+    public void setStoreLocation(String location, Job job) throws IOException {
+        FileOutputFormat.setOutputPath(job, new Path(location));
+    }
+
+    public void checkSchema(ResourceSchema s) throws IOException {
+        ResourceFieldSchema[] fields = s.getFields();
+        if (fields.length < 3
+            || fields[0].getType() != DataType.CHARARRAY
+            || fields[1].getType() != DataType.CHARARRAY
+            || !DataType.isNumberType(fields[2].getType())) {
+            throw new IOException(
+                "RecommendationStorage expects (key: chararray, target: chararray, weight: float, ...), got " + s);
+        }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public void prepareToWrite(RecordWriter writer) {
+        this.writer = writer;
+    }
+
+    public void putNext(Tuple t) throws IOException {
+        try {
+            writer.write(NullWritable.get(), t);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted writing recommendations");
+        }
+    }
+
+    public static class RecommendationOutputFormat extends FileOutputFormat<NullWritable, Tuple> {
+        public RecordWriter<NullWritable, Tuple> getRecordWriter(TaskAttemptContext context)
+                throws IOException, InterruptedException {
+            Path file = getDefaultWorkFile(context, "");
+            FileSystem fs = file.getFileSystem(context.getConfiguration());
+            return new RecommendationRecordWriter(fs.create(file, false));
+        }
+    }
+
+    /**
+     * Writes blocks as their keys complete, then the targets, index and trailer on close.
+     * See RecommendationStore for the layout.
+     */
+    static class RecommendationRecordWriter extends RecordWriter<NullWritable, Tuple> {
+        private final DataOutputStream out;
+        private long position;
+
+        private final TObjectIntHashMap<String> targetIds;
+        private final ArrayList<byte[]> targets;
+
+        private long[] blockOffsets;
+        private int numKeys;
+
+        private String currentKey;
+        private int[] recTargets;
+        private float[] recWeights;
+        private int numRecs;
+
+        RecommendationRecordWriter(FSDataOutputStream out) throws IOException {
+            this.out = out;
+            targetIds = new TObjectIntHashMap<String>(
+                Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+            targets = new ArrayList<byte[]>();
+            blockOffsets = new long[1024];
+            recTargets = new int[16];
+            recWeights = new float[16];
+
+            out.writeInt(RecommendationStore.MAGIC);
+            out.writeInt(RecommendationStore.VERSION);
+            position = RecommendationStore.HEADER_SIZE;
+        }
+
+        public void write(NullWritable ignored, Tuple t) throws IOException {
+            String key = (String) t.get(0);
+            String target = (String) t.get(1);
+            Number weight = (Number) t.get(2);
+            if (key == null || target == null) {
+                return;
+            }
+
+            if (!key.equals(currentKey)) {
+                if (currentKey != null && key.compareTo(currentKey) < 0) {
+                    throw new IOException("RecommendationStorage input is not sorted by key: '"
+                                          + key + "' after '" + currentKey + "'");
+                }
+                writeBlock();
+                currentKey = key;
+            }
+
+            int targetId = targetIds.get(target);
+            if (targetId == -1) {
+                targetId = targets.size();
+                targetIds.put(target, targetId);
+                targets.add(target.getBytes("UTF-8"));
+            }
+
+            if (numRecs == recTargets.length) {
+                int[] grownTargets = new int[numRecs * 2];
+                float[] grownWeights = new float[numRecs * 2];
+                System.arraycopy(recTargets, 0, grownTargets, 0, numRecs);
+                System.arraycopy(recWeights, 0, grownWeights, 0, numRecs);
+                recTargets = grownTargets;
+                recWeights = grownWeights;
+            }
+            recTargets[numRecs] = targetId;
+            recWeights[numRecs] = weight == null ? Float.NaN : weight.floatValue();
+            numRecs++;
+        }
+
+        public void close(TaskAttemptContext context) throws IOException {
+            writeBlock();
+
+            long targetsOffset = position;
+            int offset = 0;
+            for (byte[] target : targets) {
+                writeInt(offset);
+                offset += target.length;
+            }
+            writeInt(offset);
+            for (byte[] target : targets) {
+                out.write(target);
+                position += target.length;
+            }
+
+            pad(8);
+            long indexOffset = position;
+            for (int i = 0; i < numKeys; i++) {
+                out.writeLong(blockOffsets[i]);
+                position += 8;
+            }
+
+            out.writeLong(targetsOffset);
+            out.writeLong(indexOffset);
+            out.writeInt(numKeys);
+            out.writeInt(targets.size());
+            out.writeInt(RecommendationStore.VERSION);
+            out.writeInt(RecommendationStore.MAGIC);
+            out.close();
+        }
+
+        private void writeBlock() throws IOException {
+            if (currentKey == null) {
+                return;
+            }
+
+            if (numKeys == blockOffsets.length) {
+                long[] grown = new long[numKeys * 2];
+                System.arraycopy(blockOffsets, 0, grown, 0, numKeys);
+                blockOffsets = grown;
+            }
+            blockOffsets[numKeys++] = position;
+
+            byte[] key = currentKey.getBytes("UTF-8");
+            writeInt(key.length);
+            out.write(key);
+            position += key.length;
+            pad(4);
+
+            writeInt(numRecs);
+            for (int i = 0; i < numRecs; i++) {
+                writeInt(recTargets[i]);
+                out.writeFloat(recWeights[i]);
+                position += 4;
+            }
+
+            currentKey = null;
+            numRecs = 0;
+        }
+
+        private void writeInt(int v) throws IOException {
+            out.writeInt(v);
+            position += 4;
+        }
+
+        private void pad(int alignment) throws IOException {
+            while (position % alignment != 0) {
+                out.write(0);
+                position++;
+            }
+        }
+    }
+}
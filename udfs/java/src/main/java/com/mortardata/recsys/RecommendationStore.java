@@ -0,0 +1,349 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class RecommendationStore implements Closeable {
+    static final int MAGIC = 0x52454353;    // "RECS"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int TRAILER_SIZE = 32;
+
+    private Part[] parts;
+
+    /**
+     * Looks up recommendations in files written by RecommendationStorage, for serving them
+     * without loading them into a database first.
+     *
+     * The files are memory-mapped and read in place: opening a store only reads the fixed-size
+     * trailer of each file, and a lookup is a binary search over the file's index of keys,
+     * comparing the UTF-8 key bytes in the file directly against the requested key.  Lookups do
+     * not allocate, except for decoding each recommended item's name the first time it is
+     * returned, and are safe to run from many threads at once.
+     *
+     * The output of a Pig store is a directory of part files, each holding a sorted range of keys,
+     * and a store can be opened on either the directory or a single file.  The ranges of the files
+     * must not overlap, so that each key is read from exactly one file; a store whose files share
+     * a key, such as one written by an order by that split a key over several reducers, is rejected
+     * instead of returning part of that key's recommendations.  Each file must be smaller than 2GB.
+     *
+     * File format (all numbers big-endian):
+     *
+     *      header:     magic: int, version: int
+     *      blocks:     for each key in sorted order, aligned to 4 bytes:
+     *                      key_length: int, key: UTF-8 bytes, padding to 4 bytes,
+     *                      num_recs: int, num_recs * (target_id: int, weight: float)
+     *      targets:    aligned to 4 bytes:
+     *                      (num_targets + 1) * offset: int, UTF-8 bytes of every target
+     *                      where target i is bytes [offset[i], offset[i + 1])
+     *      index:      aligned to 8 bytes: num_keys * block_offset: long
+     *      trailer:    targets_offset: long, index_offset: long, num_keys: int,
+     *                  num_targets: int, version: int, magic: int
+     *
+     * @param path: A file written by RecommendationStorage, or a directory of them.
+     */
+    public static RecommendationStore open(File path) throws IOException {
+        File[] files;
+        if (path.isDirectory()) {
+            files = path.listFiles(new FileFilter() {
+                public boolean accept(File f) {
+                    return f.isFile() && !f.getName().startsWith("_") && !f.getName().startsWith(".");
+                }
+            });
+            Arrays.sort(files);
+        } else {
+            files = new File[] { path };
+        }
+
+        ArrayList<Part> parts = new ArrayList<Part>(files.length);
+        String lastKey = null;
+        File lastFile = null;
+        for (File file : files) {
+            Part part = Part.map(file);
+            if (part.numKeys > 0) {
+                if (lastKey != null && part.compareKey(0, lastKey) <= 0) {
+                    throw new IOException("Recommendation files overlap at key " + part.key(0)
+                                          + ": " + lastFile + ", " + file);
+                }
+                lastKey = part.key(part.numKeys - 1);
+                lastFile = file;
+                parts.add(part);
+            }
+        }
+        return new RecommendationStore(parts.toArray(new Part[parts.size()]));
+    }
+
+    private RecommendationStore(Part[] parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * Find the top k recommendations for a key.
+     *
+     * @param key: The item (for item-item recommendations) or user (for user-item recommendations).
+     * @param k: Maximum number of recommendations to return.
+     * @param result: Receives the recommendations, in the order they were stored.
+     * @return true if the key has any recommendations.
+     */
+    public boolean lookup(CharSequence key, int k, Result result) {
+        result.clear();
+
+        // Parts hold sorted, non-overlapping key ranges; find the last part starting at or before key.
+        int lo = 0;
+        int hi = parts.length - 1;
+        int partIndex = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (parts[mid].compareKey(0, key) <= 0) {
+                partIndex = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (partIndex == -1) {
+            return false;
+        }
+
+        Part part = parts[partIndex];
+        int keyIndex = part.find(key);
+        if (keyIndex < 0) {
+            return false;
+        }
+        part.read(keyIndex, k, result);
+        return result.size() > 0;
+    }
+
+    public int numParts() {
+        return parts.length;
+    }
+
+    public void close() {
+        // Mapped buffers are released when they are garbage collected.
+        parts = new Part[0];
+    }
+
+    /**
+     * A reusable holder for the recommendations of one key.  Not thread-safe; use one per thread.
+     */
+    public static class Result {
+        private final int[] targetIds;
+        private final float[] weights;
+        private int size;
+        private Part part;
+
+        /**
+         * @param capacity: The largest k this will be used with.
+         */
+        public Result(int capacity) {
+            targetIds = new int[capacity];
+            weights = new float[capacity];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public float weight(int i) {
+            return weights[i];
+        }
+
+        public String target(int i) {
+            return part.target(targetIds[i]);
+        }
+
+        void clear() {
+            size = 0;
+            part = null;
+        }
+    }
+
+    private static class Part {
+        private final ByteBuffer buf;
+        private final int numKeys;
+        private final int indexOffset;
+        private final int targetsOffset;
+        private final int targetBytesOffset;
+        private final String[] targets;
+
+        static Part map(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Recommendation file too large to map: " + file);
+                }
+                if (size < HEADER_SIZE + TRAILER_SIZE) {
+                    throw new IOException("Not a recommendation file: " + file);
+                }
+                return new Part(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), file);
+            } finally {
+                raf.close();
+            }
+        }
+
+        Part(ByteBuffer buf, File file) throws IOException {
+            this.buf = buf;
+            int trailer = buf.capacity() - TRAILER_SIZE;
+            if (buf.getInt(0) != MAGIC || buf.getInt(trailer + 28) != MAGIC) {
+                throw new IOException("Not a recommendation file: " + file);
+            }
+            if (buf.getInt(4) != VERSION) {
+                throw new IOException("Unsupported recommendation file version " + buf.getInt(4) + ": " + file);
+            }
+
+            this.targetsOffset = (int) buf.getLong(trailer);
+            this.indexOffset = (int) buf.getLong(trailer + 8);
+            this.numKeys = buf.getInt(trailer + 16);
+            int numTargets = buf.getInt(trailer + 20);
+            this.targetBytesOffset = targetsOffset + 4 * (numTargets + 1);
+            this.targets = new String[numTargets];
+        }
+
+        /**
+         * @return The index of key, or -1 if it is not in this part.
+         */
+        int find(CharSequence key) {
+            int lo = 0;
+            int hi = numKeys - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = compareKey(mid, key);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        void read(int keyIndex, int k, Result result) {
+            int pos = blockOffset(keyIndex);
+            pos += align4(4 + buf.getInt(pos));
+            int n = Math.min(Math.min(k, result.targetIds.length), buf.getInt(pos));
+            pos += 4;
+            for (int i = 0; i < n; i++) {
+                result.targetIds[i] = buf.getInt(pos);
+                result.weights[i] = buf.getFloat(pos + 4);
+                pos += 8;
+            }
+            result.size = n;
+            result.part = this;
+        }
+
+        String target(int id) {
+            // Benign race: two threads may both decode the same target.
+            String target = targets[id];
+            if (target == null) {
+                int start = buf.getInt(targetsOffset + 4 * id);
+                int end = buf.getInt(targetsOffset + 4 * (id + 1));
+                byte[] bytes = new byte[end - start];
+                ByteBuffer dup = buf.duplicate();
+                dup.position(targetBytesOffset + start);
+                dup.get(bytes);
+                try {
+                    target = new String(bytes, "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
+                }
+                targets[id] = target;
+            }
+            return target;
+        }
+
+        String key(int keyIndex) {
+            int pos = blockOffset(keyIndex);
+            byte[] bytes = new byte[buf.getInt(pos)];
+            ByteBuffer dup = buf.duplicate();
+            dup.position(pos + 4);
+            dup.get(bytes);
+            try {
+                return new String(bytes, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private int blockOffset(int keyIndex) {
+            return (int) buf.getLong(indexOffset + 8 * keyIndex);
+        }
+
+        /**
+         * Compare the key of a block with a key in the same order as String.compareTo, by decoding
+         * the stored UTF-8 bytes to UTF-16 chars one at a time.
+         */
+        int compareKey(int keyIndex, CharSequence key) {
+            int pos = blockOffset(keyIndex);
+            int end = pos + 4 + buf.getInt(pos);
+            int p = pos + 4;
+            int i = 0;
+            int n = key.length();
+            char lowSurrogate = 0;
+
+            while (true) {
+                char c;
+                if (lowSurrogate != 0) {
+                    c = lowSurrogate;
+                    lowSurrogate = 0;
+                } else if (p < end) {
+                    int b = buf.get(p++) & 0xFF;
+                    if (b < 0x80) {
+                        c = (char) b;
+                    } else if (b < 0xE0) {
+                        c = (char) (((b & 0x1F) << 6) | (buf.get(p++) & 0x3F));
+                    } else if (b < 0xF0) {
+                        c = (char) (((b & 0x0F) << 12) | ((buf.get(p++) & 0x3F) << 6) | (buf.get(p++) & 0x3F));
+                    } else {
+                        int cp = ((b & 0x07) << 18) | ((buf.get(p++) & 0x3F) << 12)
+                            | ((buf.get(p++) & 0x3F) << 6) | (buf.get(p++) & 0x3F);
+                        cp -= 0x10000;
+                        c = (char) (0xD800 + (cp >>> 10));
+                        lowSurrogate = (char) (0xDC00 + (cp & 0x3FF));
+                    }
+                } else {
+                    return i < n ? -1 : 0;
+                }
+
+                if (i == n) {
+                    return 1;
+                }
+                char keyChar = key.charAt(i++);
+                if (c != keyChar) {
+                    return c - keyChar;
+                }
+            }
+        }
+
+        static int align4(int n) {
+            return (n + 3) & ~3;
+        }
+    }
+}
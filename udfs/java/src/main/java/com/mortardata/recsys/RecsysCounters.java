@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import java.util.HashMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.pig.impl.util.UDFContext;
+import org.apache.pig.tools.pigstats.PigStatusReporter;
+
+public class RecsysCounters {
+    public static final String GROUP = "recsys";
+    public static final String HISTOGRAMS_PROPERTY = "recsys.counters.histograms";
+
+    static final String CALLS = "calls";
+    static final String TOTAL_CALL_TIME_US = "total call time us";
+    static final String CALL_TIME_US = "call time us";
+    static final String BUCKET_SEPARATOR = ", < 2^";
+
+    private final String udf;
+    private final HashMap<String, Counter> counters = new HashMap<String, Counter>();
+    private final HashMap<String, Counter[]> histograms = new HashMap<String, Counter[]>();
+    private Boolean histogramsEnabled;
+
+    /**
+     * Hadoop counters for one recsys UDF, in the "recsys" counter group and named
+     * "udf: name", so that a slow job can be traced to large bags or many links.
+     * RecsysCountersReport summarizes them after the job.
+     *
+     * Every UDF counts its calls and their total wall time.  Histograms of bag sizes and
+     * per-call wall time use one counter per power of two, so they are only kept when the
+     * recsys.counters.histograms property is true, e.g. with "set recsys.counters.histograms true;"
+     * in the Pig script.  Hadoop limits the number of counters per job (120 by default),
+     * so histograms for many UDFs in one job may need a higher limit.
+     *
+     * Counters are only updated inside map and reduce tasks.  Elsewhere, e.g. when a UDF is called
+     * directly from Java, they are ignored.
+     *
+     * @param udf: Name of the UDF, e.g. its simple class name.
+     */
+    public RecsysCounters(String udf) {
+        this.udf = udf;
+    }
+
+    public void increment(String name, long amount) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counter = getCounter(udf + ": " + name);
+            if (counter == null) {
+                return;
+            }
+            counters.put(name, counter);
+        }
+        counter.increment(amount);
+    }
+
+    /**
+     * Count a value in the bucket [2^(k-1), 2^k) of a histogram, where bucket 0 holds 0.
+     */
+    public void histogram(String name, long value) {
+        if (!histogramsEnabled()) {
+            return;
+        }
+
+        Counter[] buckets = histograms.get(name);
+        if (buckets == null) {
+            buckets = new Counter[65];
+            histograms.put(name, buckets);
+        }
+
+        int k = 64 - Long.numberOfLeadingZeros(Math.max(value, 0));
+        if (buckets[k] == null) {
+            buckets[k] = getCounter(udf + ": " + name + BUCKET_SEPARATOR + k);
+            if (buckets[k] == null) {
+                return;
+            }
+        }
+        buckets[k].increment(1);
+    }
+
+    /**
+     * Count a call of the UDF that started at startNanos, from System.nanoTime().
+     */
+    public void recordCall(long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        increment(CALLS, 1);
+        increment(TOTAL_CALL_TIME_US, nanos / 1000);
+        histogram(CALL_TIME_US, nanos / 1000);
+    }
+
+    private boolean histogramsEnabled() {
+        if (histogramsEnabled == null) {
+            Configuration conf = UDFContext.getUDFContext().getJobConf();
+            if (conf == null) {
+                return false;
+            }
+            histogramsEnabled = conf.getBoolean(HISTOGRAMS_PROPERTY, false);
+        }
+        return histogramsEnabled;
+    }
+
+    private static Counter getCounter(String name) {
+        PigStatusReporter reporter = PigStatusReporter.getInstance();
+        return reporter == null ? null : reporter.getCounter(GROUP, name);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.pig.PigCounters;
+import org.apache.pig.tools.pigstats.JobStats;
+import org.apache.pig.tools.pigstats.PigStats;
+
+// Pig's JobStats only gives the old mapred Counters, and Hadoop 0.20 has no mapreduce API to look
+// up a finished job, so the deprecated mapred classes are used.  They are not imported, since javac
+// warns about deprecated imports even when the class suppresses the warnings.
+@SuppressWarnings("deprecation")
+public class RecsysCountersReport {
+    private static final double[] PERCENTILES = { 0.5, 0.9, 0.99 };
+
+    /**
+     * Summarizes the RecsysCounters of every job of a Pig run, for a driver that runs the recsys
+     * macros through embedded Pig, e.g. from a Jython control script:
+     *
+     *      stats = Pig.compileFromFile('recommender.pig').bind().runSingle()
+     *      print RecsysCountersReport.format(stats)
+     *
+     * For each job and UDF this lists every counter, the mean call time and, when histograms
+     * were enabled, the count and 50th, 90th and 99th percentiles of each histogram.  Percentiles
+     * are given as the upper bound of their power of two bucket.  Pig's own spill counters are
+     * included, since spilled bags are a common cause of slow UDFs.
+     */
+    public static String format(PigStats stats) {
+        StringBuilder report = new StringBuilder();
+        for (JobStats job : stats.getJobGraph()) {
+            org.apache.hadoop.mapred.Counters counters = job.getHadoopCounters();
+            if (counters == null) {
+                continue;
+            }
+            String jobReport = format(counters);
+            if (jobReport.length() > 0) {
+                report.append("Job ").append(job.getJobId())
+                      .append(" (").append(job.getAlias()).append(")\n")
+                      .append(jobReport);
+            }
+        }
+        return report.toString();
+    }
+
+    /**
+     * Summarizes the RecsysCounters of one job.  Empty if the job ran no instrumented UDFs.
+     */
+    public static String format(org.apache.hadoop.mapred.Counters counters) {
+        TreeMap<String, TreeMap<String, Long>> values = new TreeMap<String, TreeMap<String, Long>>();
+        TreeMap<String, TreeMap<String, long[]>> histograms = new TreeMap<String, TreeMap<String, long[]>>();
+
+        for (org.apache.hadoop.mapred.Counters.Counter counter : counters.getGroup(RecsysCounters.GROUP)) {
+            String name = counter.getName();
+            int sep = name.indexOf(": ");
+            if (sep == -1) {
+                continue;
+            }
+            String udf = name.substring(0, sep);
+            String metric = name.substring(sep + 2);
+
+            int bucketSep = metric.lastIndexOf(RecsysCounters.BUCKET_SEPARATOR);
+            if (bucketSep == -1) {
+                getOrCreate(values, udf).put(metric, counter.getValue());
+            } else {
+                int k = Integer.parseInt(metric.substring(bucketSep + RecsysCounters.BUCKET_SEPARATOR.length()));
+                TreeMap<String, long[]> udfHistograms = getOrCreate(histograms, udf);
+                String histogram = metric.substring(0, bucketSep);
+                long[] buckets = udfHistograms.get(histogram);
+                if (buckets == null) {
+                    buckets = new long[65];
+                    udfHistograms.put(histogram, buckets);
+                }
+                buckets[k] += counter.getValue();
+            }
+        }
+
+        StringBuilder report = new StringBuilder();
+        TreeSet<String> udfs = new TreeSet<String>(values.keySet());
+        udfs.addAll(histograms.keySet());
+
+        for (String udf : udfs) {
+            report.append("  ").append(udf).append('\n');
+
+            TreeMap<String, Long> udfValues = getOrCreate(values, udf);
+            for (Map.Entry<String, Long> e : udfValues.entrySet()) {
+                report.append("    ").append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+            }
+            Long calls = udfValues.get(RecsysCounters.CALLS);
+            Long totalTime = udfValues.get(RecsysCounters.TOTAL_CALL_TIME_US);
+            if (calls != null && calls > 0 && totalTime != null) {
+                report.append("    mean call time us: ").append(totalTime / calls).append('\n');
+            }
+
+            if (histograms.containsKey(udf)) {
+                for (Map.Entry<String, long[]> e : histograms.get(udf).entrySet()) {
+                    report.append("    ").append(e.getKey()).append(": ")
+                          .append(formatHistogram(e.getValue())).append('\n');
+                }
+            }
+        }
+
+        StringBuilder spills = new StringBuilder();
+        for (PigCounters spillCounter : PigCounters.values()) {
+            long count = counters.getCounter(spillCounter);
+            if (count > 0) {
+                spills.append("    ").append(spillCounter.name()).append(": ").append(count).append('\n');
+            }
+        }
+        if (report.length() > 0 && spills.length() > 0) {
+            report.append("  Pig spills\n").append(spills);
+        }
+
+        return report.toString();
+    }
+
+    private static String formatHistogram(long[] buckets) {
+        long count = 0;
+        int max = 0;
+        for (int k = 0; k < buckets.length; k++) {
+            count += buckets[k];
+            if (buckets[k] > 0) {
+                max = k;
+            }
+        }
+
+        StringBuilder s = new StringBuilder("count ").append(count);
+        for (double p : PERCENTILES) {
+            long cumulative = 0;
+            for (int k = 0; k < buckets.length; k++) {
+                cumulative += buckets[k];
+                if (cumulative >= Math.ceil(p * count)) {
+                    s.append(", p").append(Math.round(p * 100)).append(" < ").append(upperBound(k));
+                    break;
+                }
+            }
+        }
+        return s.append(", max < ").append(upperBound(max)).toString();
+    }
+
+    private static String upperBound(int k) {
+        return k == 0 ? "1" : k < 63 ? Long.toString(1L << k) : "2^" + k;
+    }
+
+    private static <V> TreeMap<String, V> getOrCreate(TreeMap<String, TreeMap<String, V>> map, String key) {
+        TreeMap<String, V> value = map.get(key);
+        if (value == null) {
+            value = new TreeMap<String, V>();
+            map.put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Prints the report for finished jobs by their Hadoop job ids.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: RecsysCountersReport job_id...");
+            System.exit(1);
+        }
+
+        JobClient client = new JobClient(new org.apache.hadoop.mapred.JobConf());
+        for (String jobId : args) {
+            RunningJob job = client.getJob(org.apache.hadoop.mapred.JobID.forName(jobId));
+            if (job == null) {
+                System.err.println("Job not found: " + jobId);
+                continue;
+            }
+            System.out.println("Job " + jobId);
+            System.out.print(format(job.getCounters()));
+        }
+    }
+}
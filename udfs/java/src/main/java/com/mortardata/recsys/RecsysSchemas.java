@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import org.apache.pig.data.DataType;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+public class RecsysSchemas {
+
+    /**
+     * Returns the type of a field of the tuples in a bag argument of a UDF, so that UDFs which
+     * work on either chararray or dictionary encoded int ids can declare ids of the same type
+     * in their output schema.
+     *
+     * @param input: The input schema passed to outputSchema.
+     * @param bagField: The position of the bag in the input.
+     * @param field: The position of the field in the bag's tuples.
+     * @return The type of the field, or chararray if the input schema doesn't have it.
+     */
+    public static byte bagFieldType(Schema input, int bagField, int field) throws FrontendException {
+        return bagFieldType(input, bagField, field, DataType.CHARARRAY);
+    }
+
+    /**
+     * As above, but returns defaultType if the input schema doesn't have the field, e.g. for
+     * getInputSchema() at run time, which is null when Pig did not pass the schema.
+     */
+    public static byte bagFieldType(Schema input, int bagField, int field, byte defaultType)
+            throws FrontendException {
+        if (input != null && input.size() > bagField) {
+            Schema bag = input.getField(bagField).schema;
+            if (bag != null && bag.size() > 0) {
+                Schema tuple = bag.getField(0).schema;
+                if (tuple != null && tuple.size() > field) {
+                    return tuple.getField(field).type;
+                }
+            }
+        }
+        return defaultType;
+    }
+}
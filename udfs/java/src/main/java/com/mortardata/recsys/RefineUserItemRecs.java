@@ -16,19 +16,12 @@
 
 package com.mortardata.recsys;
 
-import gnu.trove.map.hash.TCustomHashMap;
-import gnu.trove.map.hash.TObjectFloatHashMap;
-import gnu.trove.set.hash.THashSet;
-
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.List;
 
+import org.apache.pig.Accumulator;
 import org.apache.pig.EvalFunc;
 import org.apache.pig.backend.executionengine.ExecException;
-import org.apache.pig.data.BagFactory;
 import org.apache.pig.data.DataBag;
 import org.apache.pig.data.DataType;
 import org.apache.pig.data.Tuple;
@@ -37,12 +30,24 @@ import org.apache.pig.impl.logicalLayer.schema.Schema;
 import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
 
 
-public class RefineUserItemRecs extends EvalFunc<DataBag> {
-    private static final BagFactory bf = BagFactory.getInstance();
+public class RefineUserItemRecs extends EvalFunc<DataBag> implements Accumulator<DataBag> {
+    private final RecsysCounters counters = new RecsysCounters("RefineUserItemRecs");
 
     private int numRecs;
     private boolean diversityAdjust;
 
+    private byte itemType = DataType.UNKNOWN;
+
+    // Per-user state, built up by accumulate.
+    private ItemKeyedMaps.Index seenBefore;
+    private ItemKeyedMaps.Index candidateIndex;
+    private ArrayList<Tuple> candidates;
+    private float[] weights;
+    private long numSignals;
+    private long numCandidates;
+    private long numSeenHits;
+    private long startNanos;
+
     /**
      * For a single user, takes a bag of weighted user-item links of items that the user has seen
      * and a set of candidate items to recommended to the user and output at most the top N unique 
@@ -55,21 +60,30 @@ public class RefineUserItemRecs extends EvalFunc<DataBag> {
      * Output Schema: { (user:chararray, item:chararray, weight:float, reason:chararray,
      *                   user_link:float, item_link:float, diversity_adj_weight:float, rank:int) }
      *
+     * Users and items may be chararrays or ints dictionary encoded by recsys__EncodeUserItemSignals;
+     * user, item and reason have the same types in the output as in the input.  Int item ids are
+     * looked up in primitive-keyed maps (see ItemKeyedMaps).
+     *
+     * The signals and candidates are consumed incrementally, so in accumulative mode Pig does not
+     * have to hold the user's full bags in memory.  Only the set of seen items and the best
+     * candidate for each unseen item are kept, with their weights in a primitive array.
+     *
      * @param numRecs: Number of recommendations to return.
      * @param diversityAdjust: If True: Try to pick item recommendations with different @reason values.
      */
     public RefineUserItemRecs(String numRecs, String diversityAdjust) {
         this.numRecs = Integer.parseInt(numRecs);
         this.diversityAdjust = Boolean.parseBoolean(diversityAdjust);
+        cleanup();
     }
 
     public Schema outputSchema(Schema input) {
         try {
             ArrayList<FieldSchema> tupleFields = new ArrayList<FieldSchema>(8);
-            tupleFields.add(new Schema.FieldSchema("user", DataType.CHARARRAY));
-            tupleFields.add(new Schema.FieldSchema("item", DataType.CHARARRAY));
+            tupleFields.add(new Schema.FieldSchema("user", RecsysSchemas.bagFieldType(input, 1, 0)));
+            tupleFields.add(new Schema.FieldSchema("item", RecsysSchemas.bagFieldType(input, 1, 1)));
             tupleFields.add(new Schema.FieldSchema("weight", DataType.FLOAT));
-            tupleFields.add(new Schema.FieldSchema("reason", DataType.CHARARRAY));
+            tupleFields.add(new Schema.FieldSchema("reason", RecsysSchemas.bagFieldType(input, 1, 3)));
             tupleFields.add(new Schema.FieldSchema("user_link", DataType.FLOAT));
             tupleFields.add(new Schema.FieldSchema("item_link", DataType.FLOAT));
             tupleFields.add(new Schema.FieldSchema("diversity_adj_weight", DataType.FLOAT));
@@ -90,110 +104,114 @@ public class RefineUserItemRecs extends EvalFunc<DataBag> {
 
     public DataBag exec(Tuple input) {
         try {
-            DataBag uiWeights = (DataBag) input.get(0);
-            DataBag uiRecsTemp = (DataBag) input.get(1);
-
-            //Create a set of items that the user has already seen.
-            THashSet<String> seenBefore = new THashSet<String>();
-            for (Tuple t : uiWeights) {
-                    String item = (String) t.get(1);
-                    seenBefore.add(item);
-            }
+            accumulate(input);
+            return getValue();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            cleanup();
+        }
+    }
 
-            TObjectFloatHashMap<String> seenInRecs = new TObjectFloatHashMap<String>();
-            HashMap<String, Tuple> candidates = new HashMap<String, Tuple>();
+    public void cleanup() {
+        seenBefore = null;
+        candidateIndex = null;
+        candidates = new ArrayList<Tuple>();
+        weights = new float[16];
+        numSignals = 0;
+        numCandidates = 0;
+        numSeenHits = 0;
+        startNanos = 0;
+    }
 
-            //Go through the possible recommendations for the user and collect
-            //the unseen recommendations.  Any item recommended for more than one
-            //reason will only be saved once with the 'best' reason.
-            for (Tuple t : uiRecsTemp) {
-                Object item = t.get(1);
-                // skip items already seen by user
-                if (seenBefore.contains(item)) { continue; }
-
-                // only take the best rec for an given item
-                // out of any duplicate occurrences
-                float weight = (Float) t.get(2);
-                String sitem = (String) item;
-                if ((!seenInRecs.containsKey(sitem))
-                        || (weight > seenInRecs.get(sitem))) {
-                        seenInRecs.put(sitem, weight);
-                        candidates.put(sitem, t);
+    public DataBag getValue() {
+        try {
+            // A recommendation may have arrived before the user's signal for the same item,
+            // so filter out seen items again now that all of the signals have been read.
+            ArrayList<Tuple> unseen = new ArrayList<Tuple>(candidates.size());
+            float[] unseenWeights = new float[candidates.size()];
+            for (int i = 0; i < candidates.size(); i++) {
+                Tuple t = candidates.get(i);
+                if (seenBefore == null || !seenBefore.contains(t.get(1))) {
+                    unseenWeights[unseen.size()] = weights[i];
+                    unseen.add(t);
+                } else {
+                    numSeenHits++;
                 }
             }
 
-            DataBag outputBag = bf.newDefaultBag();
-            List<Tuple> candValues = new ArrayList<Tuple>(candidates.values());
-
-            if (diversityAdjust) {
-                applyDiversityAdjustment(candValues);
-            } else {
-                // If we're not adjusting for diversity, the adjusted weight is just the current weight.
-                for (Tuple t : candValues) {
-                    t.append(t.get(2));
-                }
-            }
-            
-            //field @ pos 6 is diversity_adj_weight
-            Collections.sort(candValues, getTupleComparator(6));
-            
-            for (int i = 0; i < Math.min(numRecs, candValues.size()); i++) {
-                Tuple t = candValues.get(i);
-                t.append(i + 1);
-                outputBag.add(t);
-            }
+            DataBag recs = UserItemRecSelection.selectTopRecs(unseen, unseenWeights, numRecs, diversityAdjust);
 
-            return outputBag;
+            counters.increment("signals", numSignals);
+            counters.increment("candidates", numCandidates);
+            counters.increment("seen item filter hits", numSeenHits);
+            counters.increment("unique unseen candidates", unseen.size());
+            counters.increment("recs kept", recs.size());
+            counters.histogram("candidates per user", numCandidates);
+            counters.recordCall(startNanos);
+            return recs;
         } catch (ExecException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * @param input: ( user_item_signals, user_recs_tmp ) where either bag may be any
+     *               part of the user's full bag.
+     */
+    public void accumulate(Tuple input) throws IOException {
+        if (startNanos == 0) {
+            startNanos = System.nanoTime();
+        }
+        if (itemType == DataType.UNKNOWN) {
+            itemType = RecsysSchemas.bagFieldType(getInputSchema(), 1, 1, DataType.UNKNOWN);
+        }
+        DataBag uiWeights = (DataBag) input.get(0);
+        DataBag uiRecsTemp = (DataBag) input.get(1);
 
-    private void applyDiversityAdjustment(List<Tuple> candValues)
-            throws ExecException {
-        HashMap<String, ArrayList<Tuple>> reasons = new HashMap<String, ArrayList<Tuple>>();
-        
-        // Group candidate recommendations by reason.
-        for (Tuple t : candValues) {
-            String reason = (String) t.get(3);
-            if(reason!= null){
-            
-                if (reasons.get(reason) == null) {
-                    ArrayList<Tuple> reasonList = new ArrayList<Tuple>();
-                    reasonList.add(t);
-                    reasons.put(reason, reasonList);
-                } else {
-                    ArrayList<Tuple> reasonList = reasons.get(reason);
-                    reasonList.add(t);
+        //Add to the set of items that the user has already seen.
+        for (Tuple t : uiWeights) {
+                Object item = t.get(1);
+                if (seenBefore == null) {
+                    seenBefore = ItemKeyedMaps.Index.create(ItemKeyedMaps.keyType(itemType, item));
                 }
-            }
+                seenBefore.put(item, 0);
+                numSignals++;
         }
 
-        // Calculate a diversity adjusted weight for every item.  
-        // diversity_adj_weight = weight / (reason_rank + 1)
-        for (String s : reasons.keySet()) {
-            ArrayList<Tuple> li = reasons.get(s);
-            Collections.sort(li, getTupleComparator(2));
+        //Go through the possible recommendations for the user and collect
+        //the unseen recommendations.  Any item recommended for more than one
+        //reason will only be saved once with the 'best' reason.
+        for (Tuple t : uiRecsTemp) {
+            Object item = t.get(1);
+            numCandidates++;
+            // skip items already seen by user
+            if (seenBefore != null && seenBefore.contains(item)) {
+                numSeenHits++;
+                continue;
+            }
 
-            for (int i = 0; i < li.size(); i++) {
-                Tuple t = li.get(i);
-                t.append(((Float) t.get(2)) / (i + 2));
+            // only take the best rec for an given item
+            // out of any duplicate occurrences
+            float weight = (Float) t.get(2);
+            if (candidateIndex == null) {
+                candidateIndex = ItemKeyedMaps.Index.create(ItemKeyedMaps.keyType(itemType, item));
             }
-        }
-    }
-    
-    private Comparator<Tuple> getTupleComparator(final int fieldToSort) {
-        return new Comparator<Tuple>() {
-            public int compare(Tuple u, Tuple v) {
-                try {
-                    Float uWeight = (Float) u.get(fieldToSort);
-                    Float vWeight = (Float) v.get(fieldToSort);
-                    return vWeight.compareTo(uWeight);
-                } catch (ExecException e) {
-                    throw new RuntimeException(e);
+            int i = candidateIndex.get(item);
+            if (i == -1) {
+                i = candidates.size();
+                candidateIndex.put(item, i);
+                candidates.add(t);
+                if (i == weights.length) {
+                    float[] grown = new float[i * 2];
+                    System.arraycopy(weights, 0, grown, 0, i);
+                    weights = grown;
                 }
+                weights[i] = weight;
+            } else if (weight > weights[i]) {
+                candidates.set(i, t);
+                weights[i] = weight;
             }
-        };
+        }
     }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+
+public class ScoreUserItemRecs extends EvalFunc<DataBag> {
+    private final RecsysCounters counters = new RecsysCounters("ScoreUserItemRecs");
+
+    private static final String CACHE_LINK = "item_item_recs";
+
+    private int numRecs;
+    private boolean diversityAdjust;
+    private String itemItemRecsPath;
+    private Map<String, OnlineUserItemRecommender.ItemRecs> itemItemRecs;
+
+    /**
+     * For a single user, takes the bag of the user's signals and returns the same recommendations
+     * as joining the signals with the item-item recs and passing them to RefineUserItemRecs,
+     * without building the joined relation.  Candidates are weighted by
+     * SQRT(user_link * item_item_weight), items the user has seen are dropped, the best candidate
+     * is kept for each item and the top N are picked, in one pass over the user's signals.
+     *
+     * The item-item recs are shipped to every task through the distributed cache and loaded
+     * with OnlineUserItemRecommender.loadItemItemRecs on the first call, so they should fit in
+     * the task's heap.
+     *
+     * Input Schema:  user_item_signals: { (user: chararray, item: chararray, weight: float) }
+     * Output Schema: { (user:chararray, item:chararray, weight:float, reason:chararray,
+     *                   user_link:float, item_link:float, diversity_adj_weight:float, rank:int) }
+     *
+     * @param numRecs: Number of recommendations to return.
+     * @param diversityAdjust: If True: Try to pick item recommendations with different @reason values.
+     * @param itemItemRecsPath: Item-item recs (item_A, item_B, weight, raw_weight, rank)
+     *                          stored by PigStorage.
+     */
+    public ScoreUserItemRecs(String numRecs, String diversityAdjust, String itemItemRecsPath) {
+        this.numRecs = Integer.parseInt(numRecs);
+        this.diversityAdjust = Boolean.parseBoolean(diversityAdjust);
+        this.itemItemRecsPath = itemItemRecsPath;
+    }
+
+    public List<String> getCacheFiles() {
+        List<String> cacheFiles = new ArrayList<String>(1);
+        cacheFiles.add(itemItemRecsPath + "#" + CACHE_LINK);
+        return cacheFiles;
+    }
+
+    public Schema outputSchema(Schema input) {
+        try {
+            ArrayList<FieldSchema> tupleFields = new ArrayList<FieldSchema>(8);
+            tupleFields.add(new Schema.FieldSchema("user", DataType.CHARARRAY));
+            tupleFields.add(new Schema.FieldSchema("item", DataType.CHARARRAY));
+            tupleFields.add(new Schema.FieldSchema("weight", DataType.FLOAT));
+            tupleFields.add(new Schema.FieldSchema("reason", DataType.CHARARRAY));
+            tupleFields.add(new Schema.FieldSchema("user_link", DataType.FLOAT));
+            tupleFields.add(new Schema.FieldSchema("item_link", DataType.FLOAT));
+            tupleFields.add(new Schema.FieldSchema("diversity_adj_weight", DataType.FLOAT));
+            tupleFields.add(new Schema.FieldSchema("rank", DataType.INTEGER));
+
+            return new Schema(
+                new Schema.FieldSchema("ui_recs",
+                    new Schema(
+                        new Schema.FieldSchema(null,
+                            new Schema(tupleFields),
+                        DataType.TUPLE)),
+                DataType.BAG)
+            );
+        } catch (FrontendException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public DataBag exec(Tuple input) throws IOException {
+        long startNanos = System.nanoTime();
+
+        DataBag signalsBag = (DataBag) input.get(0);
+        if (itemItemRecs == null) {
+            // Local mode runs without the distributed cache, so read the path itself.
+            File link = new File(CACHE_LINK);
+            itemItemRecs = OnlineUserItemRecommender.loadItemItemRecs(
+                link.exists() ? link.getPath() : itemItemRecsPath);
+            counters.increment("item-item table loads", 1);
+        }
+
+        String user = null;
+        ArrayList<OnlineUserItemRecommender.Signal> signals =
+            new ArrayList<OnlineUserItemRecommender.Signal>((int) signalsBag.size());
+        ArrayList<String> unscoredItems = new ArrayList<String>();
+        for (Tuple t : signalsBag) {
+            if (user == null) {
+                user = (String) t.get(0);
+            }
+            // A signal without a weight scores no candidates, but its item has still been seen.
+            Float weight = (Float) t.get(2);
+            if (weight == null) {
+                unscoredItems.add((String) t.get(1));
+            } else {
+                signals.add(new OnlineUserItemRecommender.Signal((String) t.get(1), weight));
+            }
+        }
+
+        DataBag picked = OnlineUserItemRecommender.scoreTopRecs(
+            user, signals, unscoredItems, itemItemRecs, numRecs, diversityAdjust);
+
+        counters.increment("signals", signals.size() + unscoredItems.size());
+        counters.increment("signals without weight", unscoredItems.size());
+        counters.increment("recs kept", picked.size());
+        counters.histogram("signals per user", signals.size());
+        counters.recordCall(startNanos);
+        return picked;
+    }
+}
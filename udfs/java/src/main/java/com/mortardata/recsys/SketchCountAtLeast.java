@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import java.io.IOException;
+
+import org.apache.pig.FilterFunc;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+
+public class SketchCountAtLeast extends FilterFunc {
+    private final RecsysCounters counters = new RecsysCounters("SketchCountAtLeast");
+
+    private int threshold;
+
+    // The serialized sketch the counters were read from.  Pig passes the same scalar to
+    // every call in a task, so it is only deserialized once.
+    private DataByteArray sketchBytes;
+    private int[] sketch;
+
+    /**
+     * Takes a user and a UserCountSketch of the number of signals of each user, and returns
+     * whether the user may have at least threshold signals.  False means the user certainly has
+     * fewer; true means the user's exact count has to be checked, since the sketch may
+     * overestimate it.
+     *
+     * Input Schema: (user: chararray, sketch: bytearray)
+     *
+     * @param threshold: Number of signals to test for.
+     */
+    public SketchCountAtLeast(String threshold) {
+        this.threshold = Integer.parseInt(threshold);
+    }
+
+    public Boolean exec(Tuple input) throws IOException {
+        String user = (String) input.get(0);
+        DataByteArray bytes = (DataByteArray) input.get(1);
+        if (bytes != sketchBytes) {
+            sketch = UserCountSketch.deserialize(bytes);
+            sketchBytes = bytes;
+        }
+
+        if (user == null) {
+            return false;
+        }
+        boolean candidate = UserCountSketch.estimate(sketch, user) >= threshold;
+        counters.increment(candidate ? "candidate signals" : "signals cleared", 1);
+        return candidate;
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import java.io.IOException;
+
+import org.apache.pig.Algebraic;
+import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+
+import com.google.common.collect.ImmutableList;
+
+public class TopKByField extends EvalFunc<DataBag> implements Algebraic {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+    private static final BagFactory bf = BagFactory.getInstance();
+
+    private final RecsysCounters counters = new RecsysCounters("TopKByField");
+
+    private int field;
+    private boolean ascending;
+    private boolean enumerate;
+
+    /**
+     * Takes a number k and a bag of tuples, such as the links of one item_A, and returns the k
+     * tuples with the highest (or lowest) value of a numeric field, in order.  If enumerate is
+     * true each tuple gets its rank, starting at 1, as an extra last field.  This replaces the
+     * nested order / limit / Enumerate pattern, which sorts the whole bag in the reducer.
+     *
+     * Tuples are selected with a bounded heap on the float value of the field, so memory is
+     * O(k) whatever the size of the bag.  Ties at the k-th place are broken arbitrarily, as by
+     * order and limit.  Tuples whose field is null or NaN are dropped.
+     *
+     * Like the builtin TOP, k is passed with the bag rather than to the constructor, since a
+     * define made in a macro applies to the whole script and the same define is used with
+     * different sizes of neighbourhood.
+     *
+     * When used directly on a group (not flattened in the same foreach) this UDF is combinable:
+     * the Initial and Intermed stages keep the top k tuples of their part of the bag map-side,
+     * so at most k tuples per map task are shuffled for each group.
+     *
+     * Input Schema:  (k: int, { (field_0, ..., field_n) })
+     * Output Schema: { (field_0, ..., field_n[, rank: int]) }
+     *
+     * @param field: Index of the field to order by.
+     * @param order: 'desc' to keep the highest values, 'asc' to keep the lowest.
+     * @param enumerate: 'true' to add the rank of each tuple.  Default false.
+     */
+    public TopKByField(String field, String order) {
+        this(field, order, "false");
+    }
+
+    public TopKByField(String field, String order, String enumerate) {
+        this.field = Integer.parseInt(field);
+        this.ascending = parseOrder(order);
+        this.enumerate = Boolean.parseBoolean(enumerate);
+    }
+
+    public Schema outputSchema(Schema input) {
+        try {
+            Schema tupleSchema = new Schema();
+            Schema inputTuple = inputTupleSchema(input);
+            if (inputTuple != null) {
+                for (FieldSchema fs : inputTuple.getFields()) {
+                    tupleSchema.add(new Schema.FieldSchema(fs.alias, fs.schema, fs.type));
+                }
+            }
+            if (enumerate) {
+                tupleSchema.add(new Schema.FieldSchema("rank", DataType.INTEGER));
+            }
+
+            return new Schema(
+                new Schema.FieldSchema("top",
+                    new Schema(
+                        new Schema.FieldSchema(null,
+                            tupleSchema,
+                        DataType.TUPLE)),
+                DataType.BAG)
+            );
+        } catch (FrontendException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public DataBag exec(Tuple input) throws IOException {
+        long start = System.nanoTime();
+        DataBag inputBag = (DataBag) input.get(1);
+        Selection top = new Selection(((Number) input.get(0)).intValue(), field, ascending);
+        for (Tuple t : inputBag) {
+            top.offer(t);
+        }
+
+        counters.increment("input tuples", inputBag.size());
+        counters.increment("tuples dropped by null field", top.numNulls);
+        DataBag output = top.toBag(enumerate);
+        counters.increment("tuples kept", output.size());
+        counters.recordCall(start);
+        return output;
+    }
+
+    public String getInitial() {
+        return Initial.class.getName();
+    }
+
+    public String getIntermed() {
+        return Intermed.class.getName();
+    }
+
+    public String getFinal() {
+        return Final.class.getName();
+    }
+
+    /**
+     * Input Schema:  (k: int, { (field_0, ..., field_n) })
+     * Output Schema: (k: int, { (field_0, ..., field_n) })
+     */
+    public static class Initial extends EvalFunc<Tuple> {
+        private final RecsysCounters counters = new RecsysCounters("TopKByField");
+        private int field;
+        private boolean ascending;
+
+        // Pig instantiates the stages without arguments to check their return types, and with
+        // the define's arguments to run them.  This one must never select tuples.
+        public Initial() {
+            this.field = -1;
+        }
+
+        public Initial(String field, String order) {
+            this.field = Integer.parseInt(field);
+            this.ascending = parseOrder(order);
+        }
+
+        public Initial(String field, String order, String enumerate) {
+            this(field, order);
+        }
+
+        public Tuple exec(Tuple input) throws IOException {
+            checkConfigured(field);
+            int k = ((Number) input.get(0)).intValue();
+            DataBag inputBag = (DataBag) input.get(1);
+            counters.increment("input tuples", inputBag.size());
+            if (inputBag.size() <= k) {
+                return tf.newTuple(ImmutableList.of(k, inputBag));
+            }
+            Selection top = new Selection(k, field, ascending);
+            for (Tuple t : inputBag) {
+                top.offer(t);
+            }
+            return tf.newTuple(ImmutableList.of(k, top.toBag(false)));
+        }
+    }
+
+    /**
+     * Input Schema:  ( { (k: int, { (field_0, ..., field_n) }) } )
+     * Output Schema: (k: int, { (field_0, ..., field_n) })
+     */
+    public static class Intermed extends EvalFunc<Tuple> {
+        private int field;
+        private boolean ascending;
+
+        // Pig instantiates the stages without arguments to check their return types, and with
+        // the define's arguments to run them.  This one must never select tuples.
+        public Intermed() {
+            this.field = -1;
+        }
+
+        public Intermed(String field, String order) {
+            this.field = Integer.parseInt(field);
+            this.ascending = parseOrder(order);
+        }
+
+        public Intermed(String field, String order, String enumerate) {
+            this(field, order);
+        }
+
+        public Tuple exec(Tuple input) throws IOException {
+            checkConfigured(field);
+            Selection top = selectPartials((DataBag) input.get(0), field, ascending);
+            return tf.newTuple(ImmutableList.of(top.k, top.toBag(false)));
+        }
+    }
+
+    /**
+     * Input Schema:  ( { (k: int, { (field_0, ..., field_n) }) } )
+     * Output Schema: { (field_0, ..., field_n[, rank: int]) }
+     */
+    public static class Final extends EvalFunc<DataBag> {
+        private final RecsysCounters counters = new RecsysCounters("TopKByField");
+        private int field;
+        private boolean ascending;
+        private boolean enumerate;
+
+        // Pig instantiates the stages without arguments to check their return types, and with
+        // the define's arguments to run them.  This one must never select tuples.
+        public Final() {
+            this.field = -1;
+        }
+
+        public Final(String field, String order) {
+            this(field, order, "false");
+        }
+
+        public Final(String field, String order, String enumerate) {
+            this.field = Integer.parseInt(field);
+            this.ascending = parseOrder(order);
+            this.enumerate = Boolean.parseBoolean(enumerate);
+        }
+
+        public DataBag exec(Tuple input) throws IOException {
+            checkConfigured(field);
+            long start = System.nanoTime();
+            Selection top = selectPartials((DataBag) input.get(0), field, ascending);
+            DataBag output = top.toBag(enumerate);
+
+            counters.increment("tuples dropped by null field", top.numNulls);
+            counters.increment("tuples kept", output.size());
+            counters.recordCall(start);
+            return output;
+        }
+    }
+
+    /**
+     * The k tuples with the highest scores offered so far.  A tuple's score is the value of its
+     * field, negated when ordering ascending, and it is stored in the slot of the heap id it
+     * was offered with.
+     */
+    private static class Selection {
+        private final int k;
+        private final int field;
+        private final boolean ascending;
+        private final TopKFloatHeap heap;
+        private final Tuple[] slots;
+        private long numNulls;
+
+        Selection(int k, int field, boolean ascending) {
+            this.k = k;
+            this.field = field;
+            this.ascending = ascending;
+            this.heap = new TopKFloatHeap(k);
+            this.slots = new Tuple[Math.max(k, 0)];
+        }
+
+        void offer(Tuple t) throws ExecException {
+            Object value = t.get(field);
+            float score = value == null ? Float.NaN : ((Number) value).floatValue();
+            if (Float.isNaN(score)) {
+                numNulls++;
+                return;
+            }
+            if (slots.length == 0) {
+                return;
+            }
+            if (ascending) {
+                score = -score;
+            }
+
+            // Until the heap is full each tuple gets a new slot; after that a kept tuple
+            // replaces the one with the lowest score.
+            int slot = heap.size() < slots.length ? heap.size() : heap.lowestId();
+            if (heap.offer(slot, score)) {
+                slots[slot] = t;
+            }
+        }
+
+        DataBag toBag(boolean enumerate) throws ExecException {
+            DataBag output = bf.newDefaultBag();
+            int[] order = heap.drainDescending();
+            for (int i = 0; i < order.length; i++) {
+                Tuple t = slots[order[i]];
+                if (enumerate) {
+                    Tuple ranked = tf.newTuple(t.size() + 1);
+                    for (int f = 0; f < t.size(); f++) {
+                        ranked.set(f, t.get(f));
+                    }
+                    ranked.set(t.size(), i + 1);
+                    t = ranked;
+                }
+                output.add(t);
+            }
+            return output;
+        }
+    }
+
+    /**
+     * Select from partial results, each of which carries k along with its tuples.
+     */
+    private static Selection selectPartials(DataBag partials, int field, boolean ascending)
+            throws ExecException {
+        Selection top = null;
+        for (Tuple partial : partials) {
+            if (top == null) {
+                top = new Selection(((Number) partial.get(0)).intValue(), field, ascending);
+            }
+            for (Tuple t : (DataBag) partial.get(1)) {
+                top.offer(t);
+            }
+        }
+        return top == null ? new Selection(0, field, ascending) : top;
+    }
+
+    private static boolean parseOrder(String order) {
+        if ("asc".equalsIgnoreCase(order)) {
+            return true;
+        } else if ("desc".equalsIgnoreCase(order)) {
+            return false;
+        }
+        throw new IllegalArgumentException("order must be 'asc' or 'desc': " + order);
+    }
+
+    private static void checkConfigured(int field) {
+        if (field < 0) {
+            throw new IllegalStateException("TopKByField stages need the field and order");
+        }
+    }
+
+    private static Schema inputTupleSchema(Schema input) throws FrontendException {
+        if (input == null || input.size() < 2 || input.getField(1).schema == null) {
+            return null;
+        }
+        Schema bagSchema = input.getField(1).schema;
+        if (bagSchema.size() == 1 && bagSchema.getField(0).type == DataType.TUPLE) {
+            return bagSchema.getField(0).schema;
+        }
+        return bagSchema;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+public class TopKFloatHeap {
+    private final int k;
+    private int size;
+    private final int[] ids;
+    private final float[] scores;
+
+    /**
+     * Keeps the k (id, score) pairs with the highest scores out of all the pairs offered to it,
+     * using O(k) memory and O(log k) time per offer.  Ids are ints, typically indexes into
+     * the caller's own arrays of candidates.
+     *
+     * Internally this is a binary min-heap on score, so the lowest kept score is always at the
+     * root and can be compared against without modifying the heap.  When a pair ties with the
+     * lowest kept score and the heap is full, the pair already in the heap is kept.
+     *
+     * @param k: The number of pairs to keep.
+     */
+    public TopKFloatHeap(int k) {
+        this.k = Math.max(k, 0);
+        this.ids = new int[this.k];
+        this.scores = new float[this.k];
+        this.size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return The id with the lowest kept score, which the next kept pair replaces once the heap
+     *         is full.  Undefined if the heap is empty.
+     */
+    public int lowestId() {
+        return ids[0];
+    }
+
+    /**
+     * @return true if the pair was kept.
+     */
+    public boolean offer(int id, float score) {
+        if (size < k) {
+            ids[size] = id;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        } else if (k > 0 && score > scores[0]) {
+            ids[0] = id;
+            scores[0] = score;
+            siftDown(0, size);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Empty the heap, returning the ids it held ordered from highest to lowest score.
+     */
+    public int[] drainDescending() {
+        int n = size;
+        // Heap sort in place: repeatedly move the lowest remaining score to the end.
+        for (int end = n - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        int[] result = new int[n];
+        System.arraycopy(ids, 0, result, 0, n);
+        size = 0;
+        return result;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (scores[i] >= scores[parent]) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int n) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= n) {
+                break;
+            }
+            int child = left;
+            if (left + 1 < n && scores[left + 1] < scores[left]) {
+                child = left + 1;
+            }
+            if (scores[i] <= scores[child]) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        float score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
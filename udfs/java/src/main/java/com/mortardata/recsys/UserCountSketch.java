@@ -0,0 +1,235 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.pig.Algebraic;
+import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+public class UserCountSketch extends EvalFunc<DataByteArray> implements Algebraic {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+
+    static final int DEFAULT_DEPTH = 4;
+    static final int DEFAULT_WIDTH = 1 << 18;
+
+    private int depth;
+    private int width;
+
+    /**
+     * Takes a bag of users, one per signal, and returns a Count-Min sketch of the number of
+     * signals of each user: depth rows of width counters, where each user adds one to a counter
+     * in every row chosen by a different hash of the user.  A user's count is estimated by the
+     * smallest of its counters, which is never less than its true count and more by at most
+     * about the number of signals divided by width, so users whose estimate is below a
+     * threshold are certainly below it (see SketchCountAtLeast).
+     *
+     * This UDF is combinable: map-side the signals are added to sketches, which are summed
+     * in the combiner and reducer, so only one sketch per map task is shuffled.
+     *
+     * Input Schema:  { (user: chararray) }
+     * Output Schema: sketch: bytearray      The serialized sketch, as read by deserialize.
+     *
+     * @param depth: Number of rows.  Default 4.
+     * @param width: Number of counters per row.  Default 2^18.
+     */
+    public UserCountSketch() {
+        this(Integer.toString(DEFAULT_DEPTH), Integer.toString(DEFAULT_WIDTH));
+    }
+
+    public UserCountSketch(String depth, String width) {
+        this.depth = Integer.parseInt(depth);
+        this.width = Integer.parseInt(width);
+        if (this.depth < 1 || this.width < 1) {
+            throw new IllegalArgumentException("depth and width must be positive: " + depth + ", " + width);
+        }
+    }
+
+    public Schema outputSchema(Schema input) {
+        return new Schema(new Schema.FieldSchema("sketch", DataType.BYTEARRAY));
+    }
+
+    public DataByteArray exec(Tuple input) throws IOException {
+        int[] counts = new int[depth * width];
+        for (Tuple t : (DataBag) input.get(0)) {
+            addUser(counts, depth, width, t.get(0));
+        }
+        return serialize(counts, depth, width);
+    }
+
+    public String getInitial() {
+        return Initial.class.getName();
+    }
+
+    public String getIntermed() {
+        return Intermed.class.getName();
+    }
+
+    public String getFinal() {
+        return Final.class.getName();
+    }
+
+    /**
+     * Pig calls Initial once per signal, so a bag of one user is passed on as the user
+     * instead of as a whole sketch.
+     *
+     * Input Schema:  ( { (user: chararray) } )
+     * Output Schema: ( user: chararray ) or ( sketch: bytearray )
+     */
+    public static class Initial extends EvalFunc<Tuple> {
+        private int depth;
+        private int width;
+
+        public Initial() {
+            this(Integer.toString(DEFAULT_DEPTH), Integer.toString(DEFAULT_WIDTH));
+        }
+
+        public Initial(String depth, String width) {
+            this.depth = Integer.parseInt(depth);
+            this.width = Integer.parseInt(width);
+        }
+
+        public Tuple exec(Tuple input) throws IOException {
+            DataBag users = (DataBag) input.get(0);
+            if (users.size() == 1) {
+                return tf.newTuple(users.iterator().next().get(0));
+            }
+            int[] counts = new int[depth * width];
+            for (Tuple t : users) {
+                addUser(counts, depth, width, t.get(0));
+            }
+            return tf.newTuple(serialize(counts, depth, width));
+        }
+    }
+
+    /**
+     * Input Schema:  ( { ( user: chararray ) or ( sketch: bytearray ) } )
+     * Output Schema: ( sketch: bytearray )
+     */
+    public static class Intermed extends EvalFunc<Tuple> {
+        private int depth;
+        private int width;
+
+        public Intermed() {
+            this(Integer.toString(DEFAULT_DEPTH), Integer.toString(DEFAULT_WIDTH));
+        }
+
+        public Intermed(String depth, String width) {
+            this.depth = Integer.parseInt(depth);
+            this.width = Integer.parseInt(width);
+        }
+
+        public Tuple exec(Tuple input) throws IOException {
+            return tf.newTuple(serialize(sumPartials((DataBag) input.get(0), depth, width), depth, width));
+        }
+    }
+
+    /**
+     * Input Schema:  ( { ( user: chararray ) or ( sketch: bytearray ) } )
+     * Output Schema: sketch: bytearray
+     */
+    public static class Final extends EvalFunc<DataByteArray> {
+        private int depth;
+        private int width;
+
+        public Final() {
+            this(Integer.toString(DEFAULT_DEPTH), Integer.toString(DEFAULT_WIDTH));
+        }
+
+        public Final(String depth, String width) {
+            this.depth = Integer.parseInt(depth);
+            this.width = Integer.parseInt(width);
+        }
+
+        public DataByteArray exec(Tuple input) throws IOException {
+            return serialize(sumPartials((DataBag) input.get(0), depth, width), depth, width);
+        }
+    }
+
+    /**
+     * @return { depth, width } followed by the depth * width counters of the sketch.
+     */
+    static int[] deserialize(DataByteArray sketch) {
+        ByteBuffer buffer = ByteBuffer.wrap(sketch.get());
+        int[] sketchInts = new int[buffer.remaining() / 4];
+        buffer.asIntBuffer().get(sketchInts);
+        return sketchInts;
+    }
+
+    /**
+     * Estimate the number of signals of a user from a deserialized sketch.  Never less than
+     * the true count.
+     */
+    static int estimate(int[] sketch, String user) {
+        int depth = sketch[0];
+        int width = sketch[1];
+        long userHash = ItemMinHashBands.hash(user);
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, sketch[2 + row * width + column(userHash, row, width)]);
+        }
+        return estimate;
+    }
+
+    private static int[] sumPartials(DataBag partials, int depth, int width) throws ExecException {
+        int[] counts = new int[depth * width];
+        for (Tuple partial : partials) {
+            Object value = partial.get(0);
+            if (value instanceof DataByteArray) {
+                ByteBuffer buffer = ByteBuffer.wrap(((DataByteArray) value).get());
+                buffer.position(8);
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += buffer.getInt();
+                }
+            } else {
+                addUser(counts, depth, width, value);
+            }
+        }
+        return counts;
+    }
+
+    private static void addUser(int[] counts, int depth, int width, Object user) {
+        if (user == null) {
+            return;
+        }
+        long userHash = ItemMinHashBands.hash(user.toString());
+        for (int row = 0; row < depth; row++) {
+            counts[row * width + column(userHash, row, width)]++;
+        }
+    }
+
+    private static int column(long userHash, int row, int width) {
+        long h = ItemMinHashBands.mix(userHash + 0x9E3779B97F4A7C15L * (row + 1));
+        return (int) ((h >>> 1) % width);
+    }
+
+    private static DataByteArray serialize(int[] counts, int depth, int width) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 4 * counts.length);
+        buffer.putInt(depth);
+        buffer.putInt(width);
+        buffer.asIntBuffer().put(counts);
+        return new DataByteArray(buffer.array());
+    }
+}
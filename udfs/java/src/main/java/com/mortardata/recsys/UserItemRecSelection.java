@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+
+public class UserItemRecSelection {
+    private static final BagFactory bf = BagFactory.getInstance();
+
+    /**
+     * Picks the top numRecs of a user's candidate recommendations, appending the
+     * diversity_adj_weight and rank fields to each picked tuple.  Used by RefineUserItemRecs
+     * and OnlineUserItemRecommender.
+     *
+     * Candidates are selected with bounded heaps on primitive weights rather than by sorting
+     * every candidate, so the cost is O(n log numRecs) for n candidates.
+     *
+     * With diversityAdjust, diversity_adj_weight = weight / (reason_rank + 2), where reason_rank
+     * is the 0-based rank of the candidate by weight among the candidates with the same reason.
+     * Only the top numRecs candidates of each reason are ranked: for non-negative weights,
+     * a candidate with reason_rank >= numRecs is beaten by at least numRecs candidates of its own
+     * reason, so it can never be picked.  Candidates with a null reason are ranked together as
+     * if null were a reason.
+     *
+     * As with a sort, which of several candidates tied for the last place are picked is arbitrary.
+     *
+     * @param candidates: (user, item, weight, reason, user_link, item_link) tuples,
+     *                    with at most one tuple per item.
+     * @param weights: weights[i] is the weight of candidates[i].
+     * @param numRecs: Number of recommendations to return.
+     * @param diversityAdjust: Whether to rank by diversity adjusted weight.
+     * @return { (user, item, weight, reason, user_link, item_link, diversity_adj_weight, rank) }
+     */
+    public static DataBag selectTopRecs(List<Tuple> candidates, float[] weights,
+                                        int numRecs, boolean diversityAdjust) throws ExecException {
+        int n = candidates.size();
+        float[] adjWeights;
+        TopKFloatHeap top = new TopKFloatHeap(numRecs);
+
+        if (diversityAdjust) {
+            adjWeights = new float[n];
+            HashMap<Object, TopKFloatHeap> reasons = new HashMap<Object, TopKFloatHeap>();
+            for (int i = 0; i < n; i++) {
+                Object reason = candidates.get(i).get(3);
+                TopKFloatHeap reasonTop = reasons.get(reason);
+                if (reasonTop == null) {
+                    reasonTop = new TopKFloatHeap(numRecs);
+                    reasons.put(reason, reasonTop);
+                }
+                reasonTop.offer(i, weights[i]);
+            }
+
+            for (TopKFloatHeap reasonTop : reasons.values()) {
+                int[] ranked = reasonTop.drainDescending();
+                for (int r = 0; r < ranked.length; r++) {
+                    int i = ranked[r];
+                    adjWeights[i] = weights[i] / (r + 2);
+                    top.offer(i, adjWeights[i]);
+                }
+            }
+        } else {
+            // If we're not adjusting for diversity, the adjusted weight is just the current weight.
+            adjWeights = weights;
+            for (int i = 0; i < n; i++) {
+                top.offer(i, weights[i]);
+            }
+        }
+
+        DataBag outputBag = bf.newDefaultBag();
+        int[] ranked = top.drainDescending();
+        for (int r = 0; r < ranked.length; r++) {
+            Tuple t = candidates.get(ranked[r]);
+            t.append(adjWeights[ranked[r]]);
+            t.append(r + 1);
+            outputBag.add(t);
+        }
+        return outputBag;
+    }
+}
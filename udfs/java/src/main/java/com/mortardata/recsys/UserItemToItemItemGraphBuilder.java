@@ -20,35 +20,54 @@ import java.io.IOException;
 import java.util.ArrayList;
 
 import org.apache.pig.EvalFunc;
-import org.apache.pig.data.BagFactory;
 import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
 import org.apache.pig.data.DataType;
 import org.apache.pig.data.Tuple;
-import org.apache.pig.data.TupleFactory;
 import org.apache.pig.impl.logicalLayer.FrontendException;
 import org.apache.pig.impl.logicalLayer.schema.Schema;
-import org.apache.pig.tools.pigstats.PigStatusReporter;
-
-import com.google.common.collect.ImmutableList;
 
 public class UserItemToItemItemGraphBuilder extends EvalFunc<DataBag> {
-    private static final TupleFactory tf = TupleFactory.getInstance();
-    private static final BagFactory bf = BagFactory.getInstance();
+    private final RecsysCounters counters = new RecsysCounters("UserItemToItemItemGraphBuilder");
+
+    // The serialized filters last deserialized.  Pig passes the same scalars to every call
+    // in a task, so they are only deserialized once.
+    private DataByteArray sourceFilterBytes;
+    private DataByteArray destFilterBytes;
+    private long[] sourceFilter;
+    private long[] destFilter;
 
     /**
      * For a single user, takes a bag of weighted user-item links and creates
      * a bag of weighted item-item links.
+     *
+     * The returned bag is an ItemItemLinkBag, which generates the links lazily
+     * as it is iterated rather than materializing every pair up front.
      * 
      * Input Schema:  { (user: chararray, item: chararray, weight: float) }
      * Output Schema: { (item_A: chararray, item_B: chararray, weight: float) }
+     *
+     * Optionally, ItemBloomFilters of source and destination items may be passed after the bag:
+     *
+     * Input Schema:  ( { (user: chararray, item: chararray, weight: float) },
+     *                  source_filter: bytearray, dest_filter: bytearray )
+     *
+     * Then only the links (A, B) where A may be a source item or B may be a destination item are
+     * returned, since no other link can be part of a path from a source to a destination item
+     * (see recsys__InitShortestPaths_FromAvailableItems).  A null filter means every item.
+     *
+     * Users and items may be chararrays or ints dictionary encoded by recsys__EncodeUserItemSignals;
+     * item_A and item_B have the same type as the input items.  The items are not hashed here, and
+     * each item Pig has boxed is shared by all of its links, so int ids need no separate path.
      */
     public UserItemToItemItemGraphBuilder() {}
 
     public Schema outputSchema(Schema input) {
         try {
+            byte itemType = RecsysSchemas.bagFieldType(input, 0, 1);
             ArrayList<Schema.FieldSchema> tupleFields = new ArrayList<Schema.FieldSchema>(3);
-            tupleFields.add(new Schema.FieldSchema("item_A", DataType.CHARARRAY));
-            tupleFields.add(new Schema.FieldSchema("item_B", DataType.CHARARRAY));
+            tupleFields.add(new Schema.FieldSchema("item_A", itemType));
+            tupleFields.add(new Schema.FieldSchema("item_B", itemType));
             tupleFields.add(new Schema.FieldSchema("weight", DataType.FLOAT));
 
             return new Schema(
@@ -65,53 +84,56 @@ public class UserItemToItemItemGraphBuilder extends EvalFunc<DataBag> {
     }
 
     public DataBag exec(Tuple input) throws IOException {
+        long start = System.nanoTime();
         DataBag inputBag = (DataBag) input.get(0);
-        DataBag outputBag = bf.newDefaultBag();
-        PigStatusReporter reporter = PigStatusReporter.getInstance();
 
-        //Join the set of input items with itself and create a link
-        //for each pairing with the minimum user-item weight for
-        //the corresponding items.
-        int i = 0;
-        for (Tuple u : inputBag) {
-            int j = 0;
-            for (Tuple v : inputBag) {
-                if (j > i) {
-                    Float weight
-                        = new Float(Math.min(
-                            (Float) u.get(2),
-                            (Float) v.get(2))
-                        );
+        //Copy the input items and their weights out of the bag once.  The
+        //self-join of the items, creating a link for each pairing with the
+        //minimum user-item weight for the corresponding items, is done lazily
+        //as the returned bag is iterated.
+        int numItems = (int) inputBag.size();
+        Object[] items = new Object[numItems];
+        float[] weights = new float[numItems];
 
-                    outputBag.add(
-                        tf.newTupleNoCopy(
-                            ImmutableList.of(
-                                u.get(1),
-                                v.get(1),
-                                weight
-                            )
-                        )
-                    );
+        int i = 0;
+        for (Tuple t : inputBag) {
+            items[i] = t.get(1);
+            weights[i] = (Float) t.get(2);
+            i++;
+        }
 
-                    outputBag.add(
-                        tf.newTupleNoCopy(
-                            ImmutableList.of(
-                                v.get(1),
-                                u.get(1),
-                                weight
-                            )
-                        )
-                    );
-                }
-                j++;
+        ItemItemLinkBag links;
+        if (input.size() < 3 || (input.get(1) == null && input.get(2) == null)) {
+            links = new ItemItemLinkBag(items, weights);
+        } else {
+            DataByteArray sourceBytes = (DataByteArray) input.get(1);
+            if (sourceBytes != sourceFilterBytes) {
+                sourceFilter = sourceBytes == null ? null : ItemBloomFilter.deserialize(sourceBytes);
+                sourceFilterBytes = sourceBytes;
             }
-            i++;
-            
-            if (reporter != null) {
-                reporter.progress();
+            DataByteArray destBytes = (DataByteArray) input.get(2);
+            if (destBytes != destFilterBytes) {
+                destFilter = destBytes == null ? null : ItemBloomFilter.deserialize(destBytes);
+                destFilterBytes = destBytes;
             }
+
+            boolean[] sources = new boolean[numItems];
+            boolean[] dests = new boolean[numItems];
+            for (i = 0; i < numItems; i++) {
+                sources[i] = sourceFilter == null || ItemBloomFilter.mayContain(sourceFilter, items[i]);
+                dests[i] = destFilter == null || ItemBloomFilter.mayContain(destFilter, items[i]);
+            }
+            links = new ItemItemLinkBag(items, weights, sources, dests);
+            counters.increment("links dropped by available items",
+                (long) numItems * (numItems - 1) - links.size());
         }
 
-        return outputBag;
+        counters.increment("input items", numItems);
+        counters.increment("links emitted", links.size());
+        counters.histogram("input bag size", numItems);
+        // The links are generated as the bag is flattened, so the call ends when it is exhausted.
+        links.recordCallWhenIterated(counters, start);
+
+        return links;
     }
 }
@@ -2,6 +2,7 @@ package com.mortardata.recsys;
 
 import com.google.common.collect.ImmutableList;
 import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
 import org.apache.pig.data.BagFactory;
 import org.apache.pig.data.DataBag;
 import org.apache.pig.data.DataType;
@@ -13,30 +14,45 @@ import org.apache.pig.tools.pigstats.PigStatusReporter;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 
 public class UserItemToItemItemGraphBuilderDetailed extends EvalFunc<DataBag> {
 
     private static final TupleFactory tf = TupleFactory.getInstance();
     private static final BagFactory bf = BagFactory.getInstance();
+    private static final Integer ONE = 1;
+
+    private final RecsysCounters counters = new RecsysCounters("UserItemToItemItemGraphBuilderDetailed");
 
     /**
      * For a single user, takes a bag of weighted user-item links and creates
      * a bag of weighted item-item links.
      *
+     * Each link carries the combined signal type counts of its two user-item links as a flat
+     * link_counts tuple rather than a map, so that no map is built per pair:
+     *
+     *      (num_users: int, signal_type_1: chararray, count_1: int, signal_type_2: chararray, ...)
+     *
+     * num_users is always 1 here.  As with the link_data maps this replaces, a link has every
+     * signal type in either item's signal_types map, even with a count of 0.  The signal types
+     * are sorted, and both directions of a link share the same tuple.
+     * FilterItemItemLinksDetailed sums link_counts back into a link_data map.
+     *
      * Input Schema:  { (user: chararray, item: chararray, weight: float, signal_types: map) }
-     * Output Schema: { (item_A: chararray, item_B: chararray, weight: float, link_data: map) }
+     * Output Schema: { (item_A: chararray, item_B: chararray, weight: float, link_counts: tuple) }
      */
     public UserItemToItemItemGraphBuilderDetailed() {}
 
     public Schema outputSchema(Schema input) {
         try {
-            ArrayList<Schema.FieldSchema> tupleFields = new ArrayList<Schema.FieldSchema>(3);
+            ArrayList<Schema.FieldSchema> tupleFields = new ArrayList<Schema.FieldSchema>(4);
             tupleFields.add(new Schema.FieldSchema("item_A", DataType.CHARARRAY));
             tupleFields.add(new Schema.FieldSchema("item_B", DataType.CHARARRAY));
             tupleFields.add(new Schema.FieldSchema("weight", DataType.FLOAT));
-            tupleFields.add(new Schema.FieldSchema("link_data", DataType.MAP));
+            tupleFields.add(new Schema.FieldSchema("link_counts", DataType.TUPLE));
 
             return new Schema(
                     new Schema.FieldSchema("ii_terms",
@@ -51,75 +67,92 @@ public class UserItemToItemItemGraphBuilderDetailed extends EvalFunc<DataBag> {
         }
     }
 
+    @SuppressWarnings("unchecked")
     public DataBag exec(Tuple input) throws IOException {
+        long start = System.nanoTime();
         DataBag inputBag = (DataBag) input.get(0);
         DataBag outputBag = bf.newDefaultBag();
         PigStatusReporter reporter = PigStatusReporter.getInstance();
 
+        //Copy the items, weights and signal type maps out of the bag once, and
+        //number the signal types seen by this user in sorted order.
+        int numItems = (int) inputBag.size();
+        Object[] items = new Object[numItems];
+        float[] weights = new float[numItems];
+        List<Map<String, Object>> signalMaps = new ArrayList<Map<String, Object>>(numItems);
+        TreeSet<String> typeSet = new TreeSet<String>();
+
+        int n = 0;
+        for (Tuple t : inputBag) {
+            items[n] = t.get(1);
+            weights[n] = (Float) t.get(2);
+            Map<String, Object> signalMap = (Map<String, Object>) t.get(3);
+            if (signalMap != null) {
+                typeSet.addAll(signalMap.keySet());
+            }
+            signalMaps.add(signalMap);
+            n++;
+        }
+
+        String[] types = typeSet.toArray(new String[typeSet.size()]);
+        int[][] counts = new int[numItems][types.length];
+        boolean[][] hasType = new boolean[numItems][types.length];
+        for (int i = 0; i < numItems; i++) {
+            Map<String, Object> signalMap = signalMaps.get(i);
+            if (signalMap != null) {
+                for (Map.Entry<String, Object> e : signalMap.entrySet()) {
+                    int k = Arrays.binarySearch(types, e.getKey());
+                    counts[i][k] = ((Number) e.getValue()).intValue();
+                    hasType[i][k] = true;
+                }
+            }
+        }
+
         //Join the set of input items with itself and create a link
         //for each pairing with the minimum user-item weight for
         //the corresponding items.
-        int i = 0;
-        for (Tuple u : inputBag) {
-            int j = 0;
-            for (Tuple v : inputBag) {
-                Map<String, Integer> u_signals = (Map) u.get(3);
-                Map<String, Integer> v_signals = (Map) v.get(3);
-                Map<String, Integer> combinedMap = combineMaps(u_signals, v_signals);
-
-                if (j > i) {
-                    Float weight
-                            = Math.min(
-                            (Float) u.get(2),
-                            (Float) v.get(2));
-
-
-                    outputBag.add(
-                            tf.newTupleNoCopy(
-                                    ImmutableList.of(
-                                            u.get(1),
-                                            v.get(1),
-                                            weight,
-                                            combinedMap
-                                    )
-                            )
-                    );
-
-                    outputBag.add(
-                            tf.newTupleNoCopy(
-                                    ImmutableList.of(
-                                            v.get(1),
-                                            u.get(1),
-                                            weight,
-                                            combinedMap
-                                    )
-                            )
-                    );
-                }
-                j++;
+        for (int i = 0; i < numItems; i++) {
+            for (int j = i + 1; j < numItems; j++) {
+                Float weight = Math.min(weights[i], weights[j]);
+                Tuple linkCounts = combineCounts(types, counts[i], counts[j], hasType[i], hasType[j]);
+
+                outputBag.add(tf.newTupleNoCopy(ImmutableList.of(items[i], items[j], weight, linkCounts)));
+                outputBag.add(tf.newTupleNoCopy(ImmutableList.of(items[j], items[i], weight, linkCounts)));
             }
-            i++;
 
             if (reporter != null) {
                 reporter.progress();
             }
         }
 
+        counters.increment("input items", numItems);
+        counters.increment("links emitted", (long) numItems * (numItems - 1));
+        counters.histogram("input bag size", numItems);
+        // Unlike UserItemToItemItemGraphBuilder's, this bag is filled above, so the call time
+        // includes generating the links.
+        counters.recordCall(start);
+
         return outputBag;
     }
 
-    private static Map<String, Integer> combineMaps(Map<String, Integer> u_signals, Map<String, Integer> v_signals) {
-        Map<String, Integer> combinedSignals = new HashMap<String, Integer>();
-        combinedSignals.putAll(v_signals);
-        for (String s : u_signals.keySet()) {
-            if (combinedSignals.containsKey(s)) {
-                int num = combinedSignals.get(s);
-                combinedSignals.put(s, num + u_signals.get(s));
+    private static Tuple combineCounts(String[] types, int[] uCounts, int[] vCounts,
+                                       boolean[] uHasType, boolean[] vHasType) throws ExecException {
+        int numTypes = 0;
+        for (int k = 0; k < types.length; k++) {
+            if (uHasType[k] || vHasType[k]) {
+                numTypes++;
             }
-            else combinedSignals.put(s, u_signals.get(s));
         }
-        combinedSignals.put("NUM_USERS", 1);
-        return combinedSignals;
+
+        Tuple linkCounts = tf.newTuple(1 + 2 * numTypes);
+        linkCounts.set(0, ONE);
+        int f = 1;
+        for (int k = 0; k < types.length; k++) {
+            if (uHasType[k] || vHasType[k]) {
+                linkCounts.set(f++, types[k]);
+                linkCounts.set(f++, uCounts[k] + vCounts[k]);
+            }
+        }
+        return linkCounts;
     }
 }
-
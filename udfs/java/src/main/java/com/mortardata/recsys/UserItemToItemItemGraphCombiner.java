@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+public class UserItemToItemItemGraphCombiner extends EvalFunc<DataBag> {
+    private int maxLinksPerUser;
+    private int maxCombinedLinks;
+
+    /**
+     * For a collection of many users, takes their weighted user-item links and creates a bag of
+     * partially summed weighted item-item links.
+     *
+     * This does the same work as TOP($max_links_per_user) followed by UserItemToItemItemGraphBuilder
+     * for each user, but instead of emitting every link for every user it sums the links across
+     * users in a primitive-keyed hash table.  The output is a CombinedItemItemLinkBag, which does
+     * the summing lazily as it is iterated: when the table holds maxCombinedLinks links its partial
+     * sums are yielded and it starts again, so only the table and one user's items are held in
+     * memory.  The output can contain the same (item_A, item_B) more than once and must still be
+     * summed (e.g. by FilterItemItemLinks), but is typically far smaller than the uncombined links.
+     *
+     * The input bag must be sorted (or at least grouped) by user.
+     *
+     * Input Schema:  { (user: chararray, item: chararray, weight: float) }
+     * Output Schema: { (item_A: chararray, item_B: chararray, weight: float) }
+     *
+     * @param maxLinksPerUser: Only the top maxLinksPerUser items of a user by weight are linked.
+     *                         As with TOP, which of several items tied at the cutoff are kept is arbitrary.
+     * @param maxCombinedLinks: Flush partial sums once this many distinct links are held in memory.
+     *                          Each link costs roughly 30 bytes of heap.
+     */
+    public UserItemToItemItemGraphCombiner(String maxLinksPerUser, String maxCombinedLinks) {
+        this.maxLinksPerUser = Integer.parseInt(maxLinksPerUser);
+        this.maxCombinedLinks = Integer.parseInt(maxCombinedLinks);
+    }
+
+    public Schema outputSchema(Schema input) {
+        try {
+            ArrayList<Schema.FieldSchema> tupleFields = new ArrayList<Schema.FieldSchema>(3);
+            tupleFields.add(new Schema.FieldSchema("item_A", DataType.CHARARRAY));
+            tupleFields.add(new Schema.FieldSchema("item_B", DataType.CHARARRAY));
+            tupleFields.add(new Schema.FieldSchema("weight", DataType.FLOAT));
+
+            return new Schema(
+                new Schema.FieldSchema("ii_terms",
+                    new Schema(
+                        new Schema.FieldSchema(null,
+                            new Schema(tupleFields),
+                        DataType.TUPLE)),
+                DataType.BAG)
+            );
+        } catch (FrontendException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param input:  Bag of (user: chararray, item: chararray, weight: float) tuples
+     *                  sorted by user
+     */
+    public DataBag exec(Tuple input) throws IOException {
+        DataBag inputBag = (DataBag) input.get(0);
+        return new CombinedItemItemLinkBag(inputBag, maxLinksPerUser, maxCombinedLinks);
+    }
+}
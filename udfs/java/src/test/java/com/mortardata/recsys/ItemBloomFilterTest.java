@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+public class ItemBloomFilterTest {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+    private static final BagFactory bf = BagFactory.getInstance();
+
+    // Not a multiple of 64, so the last word of the filter is only partly used.
+    private static final String NUM_BITS = "10000";
+    private static final String NUM_HASHES = "5";
+
+    @Test
+    public void testNoFalseNegatives() throws IOException {
+        List<String> items = items("item", 1000);
+        items.add(null);
+        long[] filter = ItemBloomFilter.deserialize(
+            new ItemBloomFilter(NUM_BITS, NUM_HASHES).exec(tf.newTuple(itemBag(items))));
+        assertEquals(10000, filter[0]);
+        assertEquals(5, filter[1]);
+
+        for (String item : items) {
+            if (item != null) {
+                assertTrue(item, ItemBloomFilter.mayContain(filter, item));
+            }
+        }
+        assertFalse(ItemBloomFilter.mayContain(filter, null));
+    }
+
+    @Test
+    public void testFalsePositiveRate() throws IOException {
+        long[] filter = ItemBloomFilter.deserialize(
+            new ItemBloomFilter(NUM_BITS, NUM_HASHES).exec(tf.newTuple(itemBag(items("item", 1000)))));
+
+        // 10 bits per item and 5 hashes should give about 1% false positives.
+        int falsePositives = 0;
+        for (String other : items("other", 10000)) {
+            if (ItemBloomFilter.mayContain(filter, other)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void testEmptyFilter() throws IOException {
+        long[] filter = ItemBloomFilter.deserialize(
+            new ItemBloomFilter(NUM_BITS, NUM_HASHES).exec(tf.newTuple(bf.newDefaultBag())));
+        for (String item : items("item", 100)) {
+            assertFalse(ItemBloomFilter.mayContain(filter, item));
+        }
+    }
+
+    @Test
+    public void testAlgebraicMatchesExec() throws IOException {
+        List<String> items = items("item", 1000);
+
+        // As Pig runs it: Initial on one item, or on a few at a time, then Intermed on the
+        // outputs of each map task, and Final on the outputs of every task.  The last task's
+        // Initial outputs go to Final directly, as they do when the combiner is not run.
+        ItemBloomFilter.Initial initial = new ItemBloomFilter.Initial(NUM_BITS, NUM_HASHES);
+        ItemBloomFilter.Intermed intermed = new ItemBloomFilter.Intermed(NUM_BITS, NUM_HASHES);
+        ItemBloomFilter.Final fin = new ItemBloomFilter.Final(NUM_BITS, NUM_HASHES);
+
+        DataBag finalInput = bf.newDefaultBag();
+        for (int task = 0; task < items.size(); task += 300) {
+            List<String> taskItems = items.subList(task, Math.min(task + 300, items.size()));
+            DataBag initialOutputs = bf.newDefaultBag();
+            for (int i = 0, chunk = 1; i < taskItems.size(); i += chunk, chunk = 4 - chunk) {
+                List<String> chunkItems = taskItems.subList(i, Math.min(i + chunk, taskItems.size()));
+                initialOutputs.add(initial.exec(tf.newTuple(itemBag(chunkItems))));
+            }
+            if (task + 300 < items.size()) {
+                finalInput.add(intermed.exec(tf.newTuple(initialOutputs)));
+            } else {
+                finalInput.addAll(initialOutputs);
+            }
+        }
+
+        DataByteArray expected = new ItemBloomFilter(NUM_BITS, NUM_HASHES).exec(tf.newTuple(itemBag(items)));
+        assertEquals(expected, fin.exec(tf.newTuple(finalInput)));
+    }
+
+    private static List<String> items(String prefix, int n) {
+        List<String> items = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++) {
+            items.add(prefix + i);
+        }
+        return items;
+    }
+
+    private static DataBag itemBag(List<String> items) {
+        DataBag bag = bf.newDefaultBag();
+        for (String item : items) {
+            bag.add(tf.newTuple(item));
+        }
+        return bag;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecommendationStoreTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("recommendation-store", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testLookupAcrossParts() throws IOException {
+        writePart("part-r-00000", new Object[][] {
+            { "apple", "banana", 3.0f }, { "apple", "cherry", 2.0f }, { "apple", "damson", 1.0f },
+            { "banana", "apple", 2.5f }
+        });
+        writePart("part-r-00001", new Object[][] {});
+        writePart("part-r-00002", new Object[][] {
+            { "cherry", "apple", 4.0f }, { "cherry", "banana", 0.5f },
+            { "fig", "grape", 1.5f }
+        });
+        writePart("_SUCCESS", null);
+
+        RecommendationStore store = RecommendationStore.open(dir);
+        assertEquals(2, store.numParts());
+
+        RecommendationStore.Result result = new RecommendationStore.Result(10);
+        assertTrue(store.lookup("apple", 10, result));
+        assertRecs(result, new String[] { "banana", "cherry", "damson" }, new float[] { 3.0f, 2.0f, 1.0f });
+
+        assertTrue(store.lookup("banana", 10, result));
+        assertRecs(result, new String[] { "apple" }, new float[] { 2.5f });
+
+        assertTrue(store.lookup("cherry", 10, result));
+        assertRecs(result, new String[] { "apple", "banana" }, new float[] { 4.0f, 0.5f });
+
+        assertTrue(store.lookup("fig", 10, result));
+        assertRecs(result, new String[] { "grape" }, new float[] { 1.5f });
+
+        assertTrue(store.lookup("apple", 2, result));
+        assertRecs(result, new String[] { "banana", "cherry" }, new float[] { 3.0f, 2.0f });
+
+        assertFalse(store.lookup("aardvark", 10, result));
+        assertFalse(store.lookup("blueberry", 10, result));
+        assertFalse(store.lookup("zucchini", 10, result));
+        assertEquals(0, result.size());
+        store.close();
+    }
+
+    @Test
+    public void testSplitKeyIsRejected() throws IOException {
+        writePart("part-r-00000", new Object[][] {
+            { "apple", "banana", 3.0f }, { "apple", "cherry", 2.0f }
+        });
+        writePart("part-r-00001", new Object[][] {
+            { "apple", "damson", 1.0f }, { "banana", "apple", 2.5f }
+        });
+
+        try {
+            RecommendationStore.open(dir);
+            fail("Expected overlapping part files to be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("apple"));
+        }
+    }
+
+    private void writePart(String name, Object[][] recs) throws IOException {
+        Path path = new Path(new File(dir, name).getPath());
+        FileSystem fs = FileSystem.getLocal(new Configuration());
+        if (recs == null) {
+            fs.create(path, false).close();
+            return;
+        }
+
+        RecommendationStorage.RecommendationRecordWriter writer =
+            new RecommendationStorage.RecommendationRecordWriter(fs.create(path, false));
+        for (Object[] rec : recs) {
+            Tuple t = TupleFactory.getInstance().newTuple(3);
+            t.set(0, rec[0]);
+            t.set(1, rec[1]);
+            t.set(2, rec[2]);
+            writer.write(null, t);
+        }
+        writer.close(null);
+        // The local file system writes a checksum file next to each part.
+        new File(dir, "." + name + ".crc").delete();
+    }
+
+    private static void assertRecs(RecommendationStore.Result result, String[] targets, float[] weights) {
+        assertEquals(targets.length, result.size());
+        for (int i = 0; i < targets.length; i++) {
+            assertEquals(targets[i], result.target(i));
+            assertEquals(weights[i], result.weight(i), 0.0f);
+        }
+    }
+}
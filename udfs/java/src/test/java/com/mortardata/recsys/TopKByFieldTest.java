@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+public class TopKByFieldTest {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+    private static final BagFactory bf = BagFactory.getInstance();
+
+    @Test
+    public void testDescending() throws IOException {
+        DataBag links = linkBag(new Object[][] {
+            { "a", "b", 1.0f }, { "a", "c", 4.0f }, { "a", "d", null }, { "a", "e", 3.0f },
+            { "a", "f", 2.0f }, { "a", "g", Float.NaN }
+        });
+        DataBag top = new TopKByField("2", "desc").exec(kAndBag(3, links));
+        assertLinks(top, new String[] { "c", "e", "f" }, false);
+    }
+
+    @Test
+    public void testAscendingWithRank() throws IOException {
+        DataBag links = linkBag(new Object[][] {
+            { "a", "b", 1.0f }, { "a", "c", 4.0f }, { "a", "d", null }, { "a", "e", 3.0f },
+            { "a", "f", 2.0f }
+        });
+        DataBag top = new TopKByField("2", "asc", "true").exec(kAndBag(2, links));
+        assertLinks(top, new String[] { "b", "f" }, true);
+    }
+
+    @Test
+    public void testFewerTuplesThanK() throws IOException {
+        DataBag links = linkBag(new Object[][] { { "a", "b", 1.0f }, { "a", "c", 4.0f } });
+        DataBag top = new TopKByField("2", "desc", "true").exec(kAndBag(10, links));
+        assertLinks(top, new String[] { "c", "b" }, true);
+
+        top = new TopKByField("2", "desc").exec(kAndBag(0, links));
+        assertEquals(0, top.size());
+    }
+
+    @Test
+    public void testAlgebraicMatchesExec() throws IOException {
+        Random random = new Random(3);
+        List<Float> weights = new ArrayList<Float>();
+        for (int i = 0; i < 1000; i++) {
+            weights.add((float) i);
+        }
+        Collections.shuffle(weights, random);
+
+        DataBag links = bf.newDefaultBag();
+        for (int i = 0; i < weights.size(); i++) {
+            links.add(link("a", "item" + i, i % 50 == 0 ? null : weights.get(i)));
+        }
+
+        for (String order : new String[] { "asc", "desc" }) {
+            TopKByField.Initial initial = new TopKByField.Initial("2", order, "true");
+            TopKByField.Intermed intermed = new TopKByField.Intermed("2", order, "true");
+            TopKByField.Final fin = new TopKByField.Final("2", order, "true");
+
+            // As Pig runs it: Initial on one tuple at a time, then Intermed on the outputs of
+            // each map task, and Final on the outputs of every task.  The last task's Initial
+            // outputs go to Final directly, as they do when the combiner is not run.
+            List<Tuple> tuples = new ArrayList<Tuple>();
+            for (Tuple t : links) {
+                tuples.add(t);
+            }
+            DataBag finalInput = bf.newDefaultBag();
+            for (int task = 0; task < tuples.size(); task += 300) {
+                DataBag initialOutputs = bf.newDefaultBag();
+                for (Tuple t : tuples.subList(task, Math.min(task + 300, tuples.size()))) {
+                    DataBag one = bf.newDefaultBag();
+                    one.add(t);
+                    initialOutputs.add(initial.exec(kAndBag(20, one)));
+                }
+                if (task + 300 < tuples.size()) {
+                    finalInput.add(intermed.exec(tf.newTuple(initialOutputs)));
+                } else {
+                    finalInput.addAll(initialOutputs);
+                }
+            }
+
+            DataBag expected = new TopKByField("2", order, "true").exec(kAndBag(20, links));
+            assertEquals(20, expected.size());
+            assertEquals(toList(expected), toList(fin.exec(tf.newTuple(finalInput))));
+        }
+    }
+
+    @Test
+    public void testUnconfiguredStagesFail() throws IOException {
+        DataBag links = linkBag(new Object[][] { { "a", "b", 1.0f } });
+        try {
+            new TopKByField.Initial().exec(kAndBag(1, links));
+            fail("Expected an unconfigured Initial to fail");
+        } catch (IllegalStateException e) {
+        }
+
+        DataBag partials = bf.newDefaultBag();
+        partials.add(kAndBag(1, links));
+        try {
+            new TopKByField.Intermed().exec(tf.newTuple(partials));
+            fail("Expected an unconfigured Intermed to fail");
+        } catch (IllegalStateException e) {
+        }
+        try {
+            new TopKByField.Final().exec(tf.newTuple(partials));
+            fail("Expected an unconfigured Final to fail");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadOrder() {
+        new TopKByField("2", "descending");
+    }
+
+    private static Tuple kAndBag(int k, DataBag bag) throws IOException {
+        Tuple t = tf.newTuple(2);
+        t.set(0, k);
+        t.set(1, bag);
+        return t;
+    }
+
+    private static Tuple link(String itemA, String itemB, Float weight) throws IOException {
+        Tuple t = tf.newTuple(3);
+        t.set(0, itemA);
+        t.set(1, itemB);
+        t.set(2, weight);
+        return t;
+    }
+
+    private static DataBag linkBag(Object[][] links) throws IOException {
+        DataBag bag = bf.newDefaultBag();
+        for (Object[] link : links) {
+            bag.add(link((String) link[0], (String) link[1], (Float) link[2]));
+        }
+        return bag;
+    }
+
+    private static List<Tuple> toList(DataBag bag) {
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (Tuple t : bag) {
+            tuples.add(t);
+        }
+        return tuples;
+    }
+
+    private static void assertLinks(DataBag top, String[] itemBs, boolean ranked) throws IOException {
+        List<Tuple> tuples = toList(top);
+        assertEquals(itemBs.length, tuples.size());
+        for (int i = 0; i < itemBs.length; i++) {
+            Tuple t = tuples.get(i);
+            assertEquals(itemBs[i], t.get(1));
+            assertEquals(ranked ? 4 : 3, t.size());
+            if (ranked) {
+                assertEquals(i + 1, t.get(3));
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TopKFloatHeapTest {
+
+    @Test
+    public void testKeepsHighestScores() {
+        TopKFloatHeap heap = new TopKFloatHeap(3);
+        float[] scores = { 0.5f, 4.0f, 1.0f, 3.0f, 0.25f, 2.0f };
+        for (int id = 0; id < scores.length; id++) {
+            heap.offer(id, scores[id]);
+        }
+        assertEquals(3, heap.size());
+        assertEquals(5, heap.lowestId());
+        assertArrayEquals(new int[] { 1, 3, 5 }, heap.drainDescending());
+        assertEquals(0, heap.size());
+    }
+
+    @Test
+    public void testFewerPairsThanK() {
+        TopKFloatHeap heap = new TopKFloatHeap(5);
+        assertTrue(heap.offer(7, 1.0f));
+        assertTrue(heap.offer(8, 3.0f));
+        assertArrayEquals(new int[] { 8, 7 }, heap.drainDescending());
+        assertArrayEquals(new int[] {}, heap.drainDescending());
+    }
+
+    @Test
+    public void testTiesKeepEarlierPair() {
+        TopKFloatHeap heap = new TopKFloatHeap(2);
+        assertTrue(heap.offer(0, 1.0f));
+        assertTrue(heap.offer(1, 2.0f));
+        assertFalse(heap.offer(2, 1.0f));
+        assertTrue(heap.offer(3, 1.5f));
+        assertArrayEquals(new int[] { 1, 3 }, heap.drainDescending());
+    }
+
+    @Test
+    public void testZeroK() {
+        TopKFloatHeap heap = new TopKFloatHeap(0);
+        assertFalse(heap.offer(0, 1.0f));
+        assertEquals(0, heap.size());
+        assertArrayEquals(new int[] {}, heap.drainDescending());
+    }
+
+    @Test
+    public void testMatchesSort() {
+        Random random = new Random(42);
+        for (int trial = 0; trial < 100; trial++) {
+            int n = random.nextInt(200);
+            int k = random.nextInt(20);
+            float[] scores = new float[n];
+            TopKFloatHeap heap = new TopKFloatHeap(k);
+            for (int id = 0; id < n; id++) {
+                scores[id] = random.nextFloat() * 10.0f - 5.0f;
+                heap.offer(id, scores[id]);
+            }
+
+            float[] sorted = scores.clone();
+            Arrays.sort(sorted);
+            int[] top = heap.drainDescending();
+            assertEquals(Math.min(n, k), top.length);
+            for (int i = 0; i < top.length; i++) {
+                assertEquals(sorted[n - 1 - i], scores[top[i]], 0.0f);
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 Mortar Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "as is" Basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mortardata.recsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+public class UserCountSketchTest {
+    private static final TupleFactory tf = TupleFactory.getInstance();
+    private static final BagFactory bf = BagFactory.getInstance();
+
+    // Narrow enough that many users share counters.
+    private static final String DEPTH = "3";
+    private static final String WIDTH = "64";
+
+    @Test
+    public void testAlgebraicMatchesExec() throws IOException {
+        List<String> signals = randomSignals(new Random(7), 500, 2000);
+
+        // As Pig runs it: Initial on one signal, or on a few at a time, then Intermed on the
+        // outputs of each map task, and Final on the outputs of every task.  The last task's
+        // Initial outputs go to Final directly, as they do when the combiner is not run.
+        UserCountSketch.Initial initial = new UserCountSketch.Initial(DEPTH, WIDTH);
+        UserCountSketch.Intermed intermed = new UserCountSketch.Intermed(DEPTH, WIDTH);
+        UserCountSketch.Final fin = new UserCountSketch.Final(DEPTH, WIDTH);
+
+        DataBag finalInput = bf.newDefaultBag();
+        for (int task = 0; task < signals.size(); task += 300) {
+            List<String> taskSignals = signals.subList(task, Math.min(task + 300, signals.size()));
+            DataBag initialOutputs = bf.newDefaultBag();
+            for (int i = 0, chunk = 1; i < taskSignals.size(); i += chunk, chunk = 4 - chunk) {
+                List<String> users = taskSignals.subList(i, Math.min(i + chunk, taskSignals.size()));
+                initialOutputs.add(initial.exec(tf.newTuple(userBag(users))));
+            }
+            if (task + 300 < signals.size()) {
+                finalInput.add(intermed.exec(tf.newTuple(initialOutputs)));
+            } else {
+                finalInput.addAll(initialOutputs);
+            }
+        }
+
+        DataByteArray expected = new UserCountSketch(DEPTH, WIDTH).exec(tf.newTuple(userBag(signals)));
+        assertEquals(expected, fin.exec(tf.newTuple(finalInput)));
+    }
+
+    @Test
+    public void testNeverUnderestimates() throws IOException {
+        List<String> signals = randomSignals(new Random(11), 1000, 5000);
+        Map<String, Integer> counts = exactCounts(signals);
+
+        int[] sketch = UserCountSketch.deserialize(
+            new UserCountSketch(DEPTH, WIDTH).exec(tf.newTuple(userBag(signals))));
+        assertEquals(3, sketch[0]);
+        assertEquals(64, sketch[1]);
+
+        boolean overestimated = false;
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            int estimate = UserCountSketch.estimate(sketch, count.getKey());
+            assertTrue(count.getKey(), estimate >= count.getValue());
+            overestimated |= estimate > count.getValue();
+        }
+        // Otherwise the sketch is too wide for this test to mean anything.
+        assertTrue(overestimated);
+    }
+
+    @Test
+    public void testRemoveBotsMatchesExactCount() throws IOException {
+        int threshold = 20;
+        List<String> signals = randomSignals(new Random(13), 300, 3000);
+        // A few heavy users, so there are bots to find.
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < threshold + i - 2; j++) {
+                signals.add("bot" + i);
+            }
+        }
+        signals.add(null);
+
+        // recsys__RemoveBots before the sketch: every user with at least threshold signals.
+        Set<String> expected = new HashSet<String>();
+        for (Map.Entry<String, Integer> count : exactCounts(signals).entrySet()) {
+            if (count.getValue() >= threshold) {
+                expected.add(count.getKey());
+            }
+        }
+        assertFalse(expected.isEmpty());
+
+        // recsys__RemoveBots with the sketch: the users whose sketch estimate reaches the
+        // threshold, counted exactly.
+        DataByteArray sketch = new UserCountSketch(DEPTH, WIDTH).exec(tf.newTuple(userBag(signals)));
+        SketchCountAtLeast atLeast = new SketchCountAtLeast(Integer.toString(threshold));
+        List<String> candidates = new ArrayList<String>();
+        for (String user : signals) {
+            if (atLeast.exec(userAndSketch(user, sketch))) {
+                candidates.add(user);
+            }
+        }
+        assertTrue(candidates.size() < signals.size());
+
+        Set<String> bots = new HashSet<String>();
+        for (Map.Entry<String, Integer> count : exactCounts(candidates).entrySet()) {
+            if (count.getValue() >= threshold) {
+                bots.add(count.getKey());
+            }
+        }
+        assertEquals(expected, bots);
+    }
+
+    private static List<String> randomSignals(Random random, int numUsers, int numSignals) {
+        List<String> signals = new ArrayList<String>(numSignals);
+        for (int i = 0; i < numSignals; i++) {
+            // Skewed, so a few users have many signals.
+            int user = (int) (numUsers * Math.pow(random.nextDouble(), 3));
+            signals.add("user" + user);
+        }
+        return signals;
+    }
+
+    private static Map<String, Integer> exactCounts(List<String> users) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String user : users) {
+            if (user != null) {
+                Integer count = counts.get(user);
+                counts.put(user, count == null ? 1 : count + 1);
+            }
+        }
+        return counts;
+    }
+
+    private static Tuple userAndSketch(String user, DataByteArray sketch) throws IOException {
+        Tuple t = tf.newTuple(2);
+        t.set(0, user);
+        t.set(1, sketch);
+        return t;
+    }
+
+    private static DataBag userBag(List<String> users) {
+        DataBag bag = bf.newDefaultBag();
+        for (String user : users) {
+            bag.add(tf.newTuple(user));
+        }
+        return bag;
+    }
+}